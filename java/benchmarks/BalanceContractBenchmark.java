@@ -0,0 +1,65 @@
+package com.template.benchmarks;
+
+import com.template.contracts.BalanceContract;
+import com.template.states.Balance;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.transactions.LedgerTransaction;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.testing.core.TestIdentity;
+import net.corda.testing.node.MockServices;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of BalanceContract.verify for a Deposit over a growing number of balances.
+ *
+ * Every node that resolves a Balance's backchain runs this for every transaction in it.
+ * Run with -prof gc to see allocation per verification.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BalanceContractBenchmark {
+    // number of balances consumed and produced by the verified transaction
+    @Param({"1", "10", "100", "500"})
+    public int balances;
+
+    private final BalanceContract contract = new BalanceContract();
+    private LedgerTransaction depositTx;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        TestIdentity bank = new TestIdentity(new CordaX500Name("Bank", "London", "GB"));
+        TestIdentity notary = new TestIdentity(new CordaX500Name("Notary", "London", "GB"));
+        MockServices services = new MockServices(Collections.singletonList("com.template.contracts"), bank);
+
+        // the issuance is only recorded so the deposit can resolve its inputs - it is not verified
+        TransactionBuilder issue = new TransactionBuilder(notary.getParty())
+                .addCommand(new BalanceContract.Commands.Issue(), bank.getPublicKey());
+        for (int i = 0; i < balances; i++) {
+            issue.addOutputState(new Balance(0, 0, "USD", bank.getParty(), new UniqueIdentifier()));
+        }
+        SignedTransaction issued = services.signInitialTransaction(issue);
+        services.recordTransactions(issued);
+
+        TransactionBuilder deposit = new TransactionBuilder(notary.getParty())
+                .addCommand(new BalanceContract.Commands.Deposit(), bank.getPublicKey());
+        for (int i = 0; i < balances; i++) {
+            Balance input = (Balance) issued.getTx().getOutput(i);
+            deposit.addInputState(issued.getTx().outRef(i)).addOutputState(input.withTotals(input.getMoneyInMinor() + 10000, input.getMoneyOutMinor()));
+        }
+        depositTx = deposit.toLedgerTransaction(services);
+    }
+
+    @Benchmark
+    public void verifyDeposit() {
+        contract.verify(depositTx);
+    }
+}
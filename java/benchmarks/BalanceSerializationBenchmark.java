@@ -0,0 +1,75 @@
+package com.template.benchmarks;
+
+import com.template.states.Balance;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.serialization.SerializationContext;
+import net.corda.core.serialization.SerializationFactory;
+import net.corda.core.serialization.SerializedBytes;
+import net.corda.core.serialization.internal.SerializationEnvironment;
+import net.corda.core.serialization.internal.SerializationEnvironmentKt;
+import net.corda.testing.core.TestIdentity;
+import net.corda.testing.internal.InternalSerializationTestHelpersKt;
+import org.openjdk.jmh.annotations.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of building a Balance and of AMQP (p2p context) serialisation round trips, as paid for every
+ * state in every transaction sent, stored or resolved. Run with -prof gc to see allocation per op.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BalanceSerializationBenchmark {
+    private static final Logger logger = LoggerFactory.getLogger(BalanceSerializationBenchmark.class);
+
+    private SerializationEnvironment environment;
+    private SerializationFactory factory;
+    private SerializationContext context;
+    private Party issuer;
+    private UniqueIdentifier linearId;
+    private Balance balance;
+    private SerializedBytes<Balance> serialized;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        environment = InternalSerializationTestHelpersKt.createTestSerializationEnv();
+        SerializationEnvironmentKt.setNodeSerializationEnv(environment);
+        factory = environment.getSerializationFactory();
+        context = environment.getP2pContext();
+
+        issuer = new TestIdentity(new CordaX500Name("Bank", "London", "GB")).getParty();
+        linearId = new UniqueIdentifier();
+        balance = new Balance(125050, 30025, "USD", issuer, linearId);
+        serialized = factory.serialize(balance, context);
+        // reported once so size regressions show up next to the timings
+        logger.info("Serialised Balance size: {} bytes", serialized.getSize());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        SerializationEnvironmentKt.setNodeSerializationEnv(null);
+    }
+
+    @Benchmark
+    public Balance construct() {
+        return new Balance(125050, 30025, "USD", issuer, linearId);
+    }
+
+    @Benchmark
+    public SerializedBytes<Balance> serialize() {
+        return factory.serialize(balance, context);
+    }
+
+    @Benchmark
+    public Balance deserialize() {
+        return factory.deserialize(serialized, Balance.class, context);
+    }
+}
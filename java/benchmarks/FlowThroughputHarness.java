@@ -0,0 +1,261 @@
+package com.template.benchmarks;
+
+import com.google.common.collect.ImmutableList;
+import com.template.flows.Deposit;
+import com.template.flows.FlowMetrics;
+import com.template.flows.IssueBalance;
+import com.template.flows.Withdraw;
+import com.template.states.Balance;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.NotaryException;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.node.services.StatesNotAvailableException;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.testing.node.*;
+import org.HdrHistogram.Histogram;
+
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+
+/**
+ * Flow-level throughput on one machine, with no network: starts a MockNetwork of --nodes nodes and
+ * --notaries notaries and runs IssueBalance, Deposit and Withdraw at --parallelism flows in flight.
+ *
+ * Scenarios (--scenario, default all)
+ *      uniform  postings spread evenly over --accounts accounts
+ *      hot      every posting goes to a single account
+ *      mixed    uniform, over accounts issued in several currencies
+ *
+ * Each scenario issues a fresh account population and then runs --operations postings, retrying a
+ * posting up to --retries times when it loses a race for its input state (soft lock or notary
+ * conflict). Reports flows/sec, latency percentiles and conflict/retry counts per scenario, and the
+ * FinalityFlow (notarisation) stage latency each node recorded in its FlowMetrics.
+ */
+public class FlowThroughputHarness {
+    private static final long MAX_LATENCY_NANOS = TimeUnit.MINUTES.toNanos(5);
+    private static final List<String> CURRENCIES = ImmutableList.of("USD", "EUR", "GBP", "JPY");
+
+    private final int nodeCount;
+    private final int notaryCount;
+    private final int accounts;
+    private final int operations;
+    private final int parallelism;
+    private final int retries;
+
+    public FlowThroughputHarness(int nodeCount, int notaryCount, int accounts, int operations, int parallelism, int retries) {
+        this.nodeCount = nodeCount;
+        this.notaryCount = notaryCount;
+        this.accounts = accounts;
+        this.operations = operations;
+        this.parallelism = parallelism;
+        this.retries = retries;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value but got " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        FlowThroughputHarness harness = new FlowThroughputHarness(
+                Integer.parseInt(options.getOrDefault("nodes", "1")),
+                Integer.parseInt(options.getOrDefault("notaries", "1")),
+                Integer.parseInt(options.getOrDefault("accounts", "100")),
+                Integer.parseInt(options.getOrDefault("operations", "2000")),
+                Integer.parseInt(options.getOrDefault("parallelism", "32")),
+                Integer.parseInt(options.getOrDefault("retries", "3")));
+        String scenario = options.getOrDefault("scenario", "all");
+        List<String> scenarios = scenario.equals("all") ? ImmutableList.of("uniform", "hot", "mixed") : ImmutableList.of(scenario);
+
+        List<Result> results = new ArrayList<>();
+        for (String name : scenarios) {
+            results.add(harness.run(name));
+        }
+        System.out.printf("%-8s %-9s %8s %9s %8s %8s %8s %9s %8s %8s%n", "scenario", "operation",
+                "flows", "flows/s", "p50 ms", "p99 ms", "max ms", "conflicts", "retries", "failed");
+        results.forEach(Result::print);
+        System.out.printf("%n%-8s %-8s %-9s %8s %8s %8s%n", "scenario", "node", "flow", "notarised", "p50 ms", "p99 ms");
+        results.forEach(Result::printFinality);
+    }
+
+    /**
+     * Run one scenario on a fresh network.
+     */
+    public Result run(String scenario) throws InterruptedException {
+        List<MockNetworkNotarySpec> notarySpecs = new ArrayList<>();
+        for (int i = 0; i < notaryCount; i++) {
+            notarySpecs.add(new MockNetworkNotarySpec(new CordaX500Name("Notary" + i, "London", "GB")));
+        }
+        MockNetwork network = new MockNetwork(new MockNetworkParameters()
+                .withCordappsForAllNodes(ImmutableList.of(
+                        TestCordapp.findCordapp("com.template.contracts"),
+                        TestCordapp.findCordapp("com.template.flows")))
+                .withNotarySpecs(notarySpecs)
+                // every node runs its own flows so concurrent flows actually overlap
+                .withThreadPerNode(true)
+                .withNetworkSendManuallyPumped(false));
+        try {
+            List<StartedMockNode> nodes = new ArrayList<>();
+            for (int i = 0; i < nodeCount; i++) {
+                nodes.add(network.createNode(new MockNodeParameters().withLegalName(new CordaX500Name("Bank" + i, "London", "GB"))));
+            }
+            network.startNodes();
+
+            Result result = new Result(scenario);
+            int population = scenario.equals("hot") ? 1 : accounts;
+            List<UniqueIdentifier> issued = new CopyOnWriteArrayList<>();
+            Map<UniqueIdentifier, StartedMockNode> owners = new ConcurrentHashMap<>();
+            result.issue.start();
+            runAll(population, i -> {
+                StartedMockNode node = nodes.get(i % nodes.size());
+                String currency = scenario.equals("mixed") ? CURRENCIES.get(i % CURRENCIES.size()) : "USD";
+                return new Attempt(result.issue, () -> node.startFlow(new IssueBalance.IssueBalanceInitiator(currency)), tx -> {
+                    UniqueIdentifier linearId = tx.getTx().outputsOfType(Balance.class).get(0).getLinearId();
+                    issued.add(linearId);
+                    owners.put(linearId, node);
+                });
+            });
+            result.issue.stop();
+
+            Random random = new Random(42);
+            result.posting.start();
+            runAll(operations, i -> {
+                UniqueIdentifier account = issued.get(random.nextInt(issued.size()));
+                StartedMockNode node = owners.get(account);
+                // deposits outnumber withdrawals so balances drift upwards; a retry needs a fresh flow instance
+                Supplier<FlowLogic<SignedTransaction>> flow = i % 3 == 2
+                        ? () -> new Withdraw.WithdrawInitiator(account, BigDecimal.ONE)
+                        : () -> new Deposit.DepositInitiator(account, BigDecimal.valueOf(2));
+                return new Attempt(result.posting, () -> node.startFlow(flow.get()), tx -> {});
+            });
+            result.posting.stop();
+            for (StartedMockNode node : nodes) {
+                result.finality.put(node.getInfo().getLegalIdentities().get(0).getName().getOrganisation(),
+                        node.getServices().cordaService(FlowMetrics.class).snapshot());
+            }
+            return result;
+        } finally {
+            network.stopNodes();
+        }
+    }
+
+    /**
+     * Run count attempts with at most parallelism in flight, waiting for every one to finish.
+     */
+    private void runAll(int count, IntFunction<Attempt> attempts) throws InterruptedException {
+        Semaphore inFlight = new Semaphore(parallelism);
+        for (int i = 0; i < count; i++) {
+            inFlight.acquire();
+            attempts.apply(i).start(inFlight::release);
+        }
+        inFlight.acquire(parallelism);
+    }
+
+    /**
+     * One flow, retried on conflicts.
+     */
+    private class Attempt {
+        private final Stage stage;
+        private final Supplier<CordaFuture<SignedTransaction>> startFlow;
+        private final Consumer<SignedTransaction> onSuccess;
+        private final long startNanos = System.nanoTime();
+        private int attempt = 0;
+
+        Attempt(Stage stage, Supplier<CordaFuture<SignedTransaction>> startFlow, Consumer<SignedTransaction> onSuccess) {
+            this.stage = stage;
+            this.startFlow = startFlow;
+            this.onSuccess = onSuccess;
+        }
+
+        void start(Runnable onDone) {
+            startFlow.get().toCompletableFuture().whenComplete((tx, error) -> {
+                if (error == null) {
+                    stage.record(System.nanoTime() - startNanos);
+                    onSuccess.accept(tx);
+                    onDone.run();
+                } else if (isConflict(error)) {
+                    stage.conflicts.incrementAndGet();
+                    if (attempt++ < retries) {
+                        stage.retries.incrementAndGet();
+                        start(onDone);
+                    } else {
+                        stage.failed.incrementAndGet();
+                        onDone.run();
+                    }
+                } else {
+                    stage.failed.incrementAndGet();
+                    onDone.run();
+                }
+            });
+        }
+    }
+
+    /**
+     * Losing the race for an input state: the vault soft lock, the stripe reservation, or the notary.
+     */
+    private static boolean isConflict(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof NotaryException || cause instanceof StatesNotAvailableException) return true;
+            if (cause.getMessage() != null && cause.getMessage().contains("is in use")) return true;
+        }
+        return false;
+    }
+
+    private static class Stage {
+        final String operation;
+        final Histogram latency = new Histogram(MAX_LATENCY_NANOS, 3);
+        final AtomicLong conflicts = new AtomicLong();
+        final AtomicLong retries = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        long startNanos;
+        long elapsedNanos;
+
+        Stage(String operation) { this.operation = operation; }
+
+        void start() { startNanos = System.nanoTime(); }
+
+        void stop() { elapsedNanos = System.nanoTime() - startNanos; }
+
+        synchronized void record(long nanos) { latency.recordValue(Math.min(nanos, MAX_LATENCY_NANOS)); }
+    }
+
+    public static class Result {
+        final String scenario;
+        final Stage issue = new Stage("issue");
+        final Stage posting = new Stage("posting");
+        final Map<String, FlowMetrics.Snapshot> finality = new TreeMap<>();
+
+        Result(String scenario) { this.scenario = scenario; }
+
+        void print() {
+            for (Stage stage : ImmutableList.of(issue, posting)) {
+                System.out.printf("%-8s %-9s %8d %9.1f %8.2f %8.2f %8.2f %9d %8d %8d%n", scenario, stage.operation,
+                        stage.latency.getTotalCount(),
+                        stage.latency.getTotalCount() / (stage.elapsedNanos / 1e9),
+                        stage.latency.getValueAtPercentile(50) / 1e6, stage.latency.getValueAtPercentile(99) / 1e6,
+                        stage.latency.getMaxValue() / 1e6,
+                        stage.conflicts.get(), stage.retries.get(), stage.failed.get());
+            }
+        }
+
+        void printFinality() {
+            finality.forEach((node, snapshot) -> {
+                for (String flow : ImmutableList.of("issue", "deposit", "withdraw")) {
+                    FlowMetrics.StageTiming timing = snapshot.getStages().get(flow + ".finality");
+                    if (timing == null) continue;
+                    System.out.printf("%-8s %-8s %-9s %8d %8.2f %8.2f%n", scenario, node, flow,
+                            timing.getCount(), timing.getP50() / 1e6, timing.getP99() / 1e6);
+                }
+            });
+        }
+    }
+}
@@ -1,14 +1,19 @@
 package com.template;
 
+import com.template.flows.IssueBalance;
+import com.template.loadgen.LoadGenerator;
+import com.template.states.Balance;
 import net.corda.client.rpc.CordaRPCClient;
 import net.corda.client.rpc.CordaRPCConnection;
 import net.corda.core.identity.CordaX500Name;
 import net.corda.core.messaging.CordaRPCOps;
 import net.corda.core.node.NodeInfo;
+import net.corda.core.transactions.SignedTransaction;
 import net.corda.core.utilities.NetworkHostAndPort;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
 import java.util.List;
 
 import static net.corda.core.utilities.NetworkHostAndPort.parse;
@@ -17,13 +22,18 @@ import static net.corda.core.utilities.NetworkHostAndPort.parse;
  * Connects to a Corda node via RPC and performs RPC operations on the node.
  *
  * The RPC connection is configured using command line arguments.
+ * "Client load --name=value ..." runs the load generator instead, see {@link LoadGenerator}.
  */
 public class Client {
     private static final String RPC_USERNAME = "user1";
     private static final String RPC_PASSWORD = "test";
 
-    public static void main(String[] args) {
-        if (args.length != 2) throw new IllegalArgumentException("Usage: RpcClient <node address> <counterpartyName>");
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("load")) {
+            LoadGenerator.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length != 2) throw new IllegalArgumentException("Usage: RpcClient <node address> <currency>");
         System.out.println(args[0]);
         System.out.println(args[1]);
 
@@ -52,19 +62,17 @@ public class Client {
         }
 
         private void issue_balance(String currency) {
+            final CordaRPCOps proxy = rpcConnection.getProxy();
             try {
                 //start flow using proxy RPC connection
                 SignedTransaction result = proxy.startFlow(IssueBalance.IssueBalanceInitiator.class, currency).getReturnValue().get();
+                Balance balance = (Balance) result.getTx().getOutput(0);
 
-                return ResponseEntity
-                        .status(HttpStatus.CREATED)
-                        .body("Transaction id "+ result.getId() +" committed to ledger.\n "
-                                + "BalanceId is " + result.getTx().getOutput(0).getLinearId() + "\n"
-                                + "Balance currency is " + result.getTx().getOutput(0).getCurrency());
+                logger.info("Transaction id " + result.getId() + " committed to ledger.\n "
+                        + "BalanceId is " + balance.getLinearId() + "\n"
+                        + "Balance currency is " + balance.getCurrency());
             } catch (Exception e) {
-                return ResponseEntity
-                        .status(HttpStatus.BAD_REQUEST)
-                        .body(e.getMessage());
+                logger.error("Could not issue balance", e);
             }
         }
     }
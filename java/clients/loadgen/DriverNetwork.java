@@ -0,0 +1,48 @@
+package com.template.loadgen;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.utilities.NetworkHostAndPort;
+import net.corda.testing.driver.DriverParameters;
+import net.corda.testing.driver.NodeHandle;
+import net.corda.testing.driver.NodeParameters;
+import net.corda.testing.node.TestCordapp;
+import net.corda.testing.node.User;
+
+import java.util.Collections;
+
+import static net.corda.testing.driver.Driver.driver;
+
+/**
+ * Runs the load generator against a single-node driver-DSL network, so a capacity run needs neither
+ * deployNodes nor any external service. Takes the same --name=value options as {@link LoadGenerator};
+ * rpc, user and password are supplied by the driver.
+ */
+public class DriverNetwork {
+    private static final String RPC_USERNAME = "user1";
+    private static final String RPC_PASSWORD = "test";
+
+    public static void main(String[] args) {
+        LoadGenerator.Options options = LoadGenerator.Options.parse(args);
+        User user = new User(RPC_USERNAME, RPC_PASSWORD, ImmutableSet.of("ALL"));
+        DriverParameters parameters = new DriverParameters()
+                .withIsDebug(false)
+                .withStartNodesInProcess(false)
+                .withCordappsForAllNodes(ImmutableList.of(
+                        TestCordapp.findCordapp("com.template.contracts"),
+                        TestCordapp.findCordapp("com.template.flows")));
+        driver(parameters, dsl -> {
+            try {
+                NodeHandle node = dsl.startNode(new NodeParameters()
+                        .withProvidedName(new CordaX500Name("PartyA", "London", "GB"))
+                        .withRpcUsers(ImmutableList.of(user))).get();
+                NetworkHostAndPort address = node.getRpcAddress();
+                new LoadGenerator(options).run(Collections.singletonList(address), RPC_USERNAME, RPC_PASSWORD);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            return null;
+        });
+    }
+}
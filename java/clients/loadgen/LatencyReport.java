@@ -0,0 +1,105 @@
+package com.template.loadgen;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-operation latency and error recording.
+ *
+ * Latencies go into HdrHistogram Recorders. Once a second the interval histograms are written as a
+ * CSV row per operation (throughput and percentiles for that second) and folded into the totals that
+ * the text summary prints at the end.
+ */
+public class LatencyReport {
+    private static final long MAX_LATENCY_NANOS = TimeUnit.MINUTES.toNanos(5);
+    private static final String CSV_HEADER = "second,operation,count,errors,ops_per_sec,p50_ms,p90_ms,p99_ms,p999_ms,max_ms";
+
+    private final Map<String, Operation> operations = new LinkedHashMap<>();
+    private final PrintWriter csv;
+    private long second = 0;
+
+    public LatencyReport(Writer csv, String... operationNames) {
+        this.csv = csv == null ? null : new PrintWriter(csv, true);
+        for (String name : operationNames) {
+            operations.put(name, new Operation());
+        }
+        if (this.csv != null) this.csv.println(CSV_HEADER);
+    }
+
+    public void record(String operation, long latencyNanos) {
+        operations.get(operation).recorder.recordValue(Math.min(latencyNanos, MAX_LATENCY_NANOS));
+    }
+
+    public void recordError(String operation) {
+        operations.get(operation).errors.incrementAndGet();
+    }
+
+    /**
+     * Close the current interval. Call once a second; measure=false discards the interval (warm-up).
+     */
+    public synchronized void tick(boolean measure) {
+        second++;
+        for (Map.Entry<String, Operation> entry : operations.entrySet()) {
+            Operation operation = entry.getValue();
+            operation.interval = operation.recorder.getIntervalHistogram(operation.interval);
+            long errors = operation.errors.getAndSet(0);
+            if (!measure) continue;
+            operation.total.add(operation.interval);
+            operation.totalErrors += errors;
+            if (csv != null) {
+                csv.println(second + "," + entry.getKey() + "," + row(operation.interval, errors, 1));
+            }
+        }
+    }
+
+    /**
+     * Percentiles and throughput over every measured interval.
+     */
+    public synchronized void printSummary(PrintWriter out, long measuredSeconds) {
+        out.printf("%-10s %10s %8s %10s %9s %9s %9s %9s %9s%n",
+                "operation", "count", "errors", "ops/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (Map.Entry<String, Operation> entry : operations.entrySet()) {
+            Histogram total = entry.getValue().total;
+            out.printf("%-10s %10d %8d %10.1f %9.2f %9.2f %9.2f %9.2f %9.2f%n", entry.getKey(),
+                    total.getTotalCount(), entry.getValue().totalErrors,
+                    total.getTotalCount() / (double) Math.max(1, measuredSeconds),
+                    millis(total.getValueAtPercentile(50)), millis(total.getValueAtPercentile(90)),
+                    millis(total.getValueAtPercentile(99)), millis(total.getValueAtPercentile(99.9)),
+                    millis(total.getMaxValue()));
+        }
+        out.flush();
+    }
+
+    public void close() throws IOException {
+        if (csv != null) csv.close();
+    }
+
+    private static String row(Histogram histogram, long errors, long seconds) {
+        return histogram.getTotalCount() + "," + errors + ","
+                + String.format("%.1f,%.3f,%.3f,%.3f,%.3f,%.3f",
+                histogram.getTotalCount() / (double) seconds,
+                millis(histogram.getValueAtPercentile(50)), millis(histogram.getValueAtPercentile(90)),
+                millis(histogram.getValueAtPercentile(99)), millis(histogram.getValueAtPercentile(99.9)),
+                millis(histogram.getMaxValue()));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+
+    private static class Operation {
+        final Recorder recorder = new Recorder(MAX_LATENCY_NANOS, 3);
+        final Histogram total = new Histogram(MAX_LATENCY_NANOS, 3);
+        final AtomicLong errors = new AtomicLong();
+        Histogram interval = null;
+        long totalErrors = 0;
+    }
+}
@@ -0,0 +1,228 @@
+package com.template.loadgen;
+
+import com.template.flows.Deposit;
+import com.template.flows.IssueBalance;
+import com.template.flows.Withdraw;
+import com.template.states.Balance;
+import net.corda.client.rpc.CordaRPCClient;
+import net.corda.client.rpc.CordaRPCConnection;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.messaging.CordaRPCOps;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.utilities.NetworkHostAndPort;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * RPC load driver for the balance CorDapp.
+ *
+ * Opens a number of RPC connections, issues an account population, then runs a mixed deposit/withdraw
+ * workload either open-loop (a fixed arrival rate, latency measured from each operation's intended
+ * start so a slow node cannot hide queueing) or closed-loop (a fixed number of concurrent clients).
+ * Accounts are picked with Zipfian skew. Latencies go to HdrHistogram; a CSV row per operation per
+ * second and a text summary are written at the end.
+ *
+ * Options are --name=value pairs, see {@link Options}.
+ */
+public class LoadGenerator {
+    private static final Logger logger = LoggerFactory.getLogger(LoadGenerator.class);
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        List<NetworkHostAndPort> nodes = new ArrayList<>();
+        for (String address : options.get("rpc", "localhost:10006").split(",")) {
+            nodes.add(NetworkHostAndPort.parse(address.trim()));
+        }
+        new LoadGenerator(options).run(nodes, options.get("user", "user1"), options.get("password", "test"));
+    }
+
+    /**
+     * Command line options, all of the form --name=value.
+     *      rpc          comma separated node RPC addresses (default localhost:10006)
+     *      user, password
+     *      connections  RPC connections, spread over the nodes round-robin (default 4)
+     *      accounts     number of balances to issue before the run (default 1000)
+     *      currency     currency of the issued balances (default USD)
+     *      mode         open (fixed arrival rate) or closed (fixed concurrency) (default open)
+     *      rate         operations per second in open mode (default 200)
+     *      concurrency  clients in closed mode, maximum in-flight operations in open mode (default 64)
+     *      warmup       seconds run but not measured (default 10)
+     *      duration     measured seconds (default 60)
+     *      withdrawRatio share of operations that are withdrawals (default 0.3)
+     *      zipf         Zipf exponent of the account distribution, 0 for uniform (default 0.99)
+     *      amount       amount per posting (default 10)
+     *      csv          per-second results file (default loadgen.csv)
+     */
+    public static class Options {
+        private final Map<String, String> values = new HashMap<>();
+
+        public static Options parse(String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                if (!arg.startsWith("--") || !arg.contains("=")) {
+                    throw new IllegalArgumentException("Expected --name=value but got " + arg);
+                }
+                options.values.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+            return options;
+        }
+
+        public String get(String name, String defaultValue) { return values.getOrDefault(name, defaultValue); }
+
+        public int getInt(String name, int defaultValue) { return Integer.parseInt(get(name, String.valueOf(defaultValue))); }
+
+        public double getDouble(String name, double defaultValue) { return Double.parseDouble(get(name, String.valueOf(defaultValue))); }
+    }
+
+    private static final String ISSUE = "issue", DEPOSIT = "deposit", WITHDRAW = "withdraw";
+
+    private final Options options;
+    private final List<CordaRPCConnection> connections = new ArrayList<>();
+    private final AtomicInteger nextProxy = new AtomicInteger();
+    private final AtomicLong skipped = new AtomicLong();
+    private List<UniqueIdentifier> accounts;
+
+    public LoadGenerator(Options options) {
+        this.options = options;
+    }
+
+    public void run(List<NetworkHostAndPort> nodes, String username, String password) throws Exception {
+        int connectionCount = options.getInt("connections", 4);
+        for (int i = 0; i < connectionCount; i++) {
+            connections.add(new CordaRPCClient(nodes.get(i % nodes.size())).start(username, password));
+        }
+        LatencyReport report = new LatencyReport(new FileWriter(options.get("csv", "loadgen.csv")), ISSUE, DEPOSIT, WITHDRAW);
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor();
+        try {
+            accounts = issueAccounts(report);
+
+            int warmup = options.getInt("warmup", 10);
+            int duration = options.getInt("duration", 60);
+            AtomicInteger elapsed = new AtomicInteger();
+            ticker.scheduleAtFixedRate(() -> report.tick(elapsed.incrementAndGet() > warmup), 1, 1, TimeUnit.SECONDS);
+
+            long endNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmup + duration);
+            if (options.get("mode", "open").equals("closed")) {
+                runClosedLoop(report, endNanos);
+            } else {
+                runOpenLoop(report, endNanos);
+            }
+            ticker.shutdown();
+            ticker.awaitTermination(2, TimeUnit.SECONDS);
+
+            PrintWriter out = new PrintWriter(System.out);
+            out.printf("%d accounts, %s loop, %d s measured after %d s warm-up, %d operations skipped at the in-flight cap%n",
+                    accounts.size(), options.get("mode", "open"), duration, warmup, skipped.get());
+            report.printSummary(out, duration);
+        } finally {
+            ticker.shutdownNow();
+            report.close();
+            connections.forEach(CordaRPCConnection::notifyServerAndClose);
+        }
+    }
+
+    /**
+     * Issue the account population with at most concurrency issuances in flight.
+     */
+    private List<UniqueIdentifier> issueAccounts(LatencyReport report) throws InterruptedException {
+        int count = options.getInt("accounts", 1000);
+        String currency = options.get("currency", "USD");
+        Semaphore inFlight = new Semaphore(options.getInt("concurrency", 64));
+        List<UniqueIdentifier> issued = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            inFlight.acquire();
+            long start = System.nanoTime();
+            whenDone(proxy().startFlow(IssueBalance.IssueBalanceInitiator.class, currency).getReturnValue(), (tx, error) -> {
+                if (error == null) {
+                    report.record(ISSUE, System.nanoTime() - start);
+                    issued.add(tx.getTx().outputsOfType(Balance.class).get(0).getLinearId());
+                } else {
+                    report.recordError(ISSUE);
+                    logger.warn("Issuance failed", error);
+                }
+                inFlight.release();
+                done.countDown();
+            });
+        }
+        done.await();
+        report.tick(false);
+        if (issued.isEmpty()) throw new IllegalStateException("No accounts could be issued");
+        logger.info("Issued {} of {} accounts", issued.size(), count);
+        return new ArrayList<>(issued);
+    }
+
+    /**
+     * Start operations at a fixed rate regardless of how fast they complete.
+     */
+    private void runOpenLoop(LatencyReport report, long endNanos) throws InterruptedException {
+        long periodNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, options.getInt("rate", 200));
+        Semaphore inFlight = new Semaphore(options.getInt("concurrency", 64));
+        ZipfDistribution distribution = new ZipfDistribution(accounts.size(), options.getDouble("zipf", 0.99));
+        for (long intended = System.nanoTime(); intended < endNanos; intended += periodNanos) {
+            long wait = intended - System.nanoTime();
+            if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+            if (!inFlight.tryAcquire()) {
+                // the node is not keeping up; count it rather than silently lowering the rate
+                skipped.incrementAndGet();
+                continue;
+            }
+            startOperation(report, distribution, intended, inFlight::release);
+        }
+        inFlight.acquire(options.getInt("concurrency", 64));
+    }
+
+    /**
+     * Keep a fixed number of operations in flight, starting the next as soon as one completes.
+     */
+    private void runClosedLoop(LatencyReport report, long endNanos) throws InterruptedException {
+        int concurrency = options.getInt("concurrency", 64);
+        ZipfDistribution distribution = new ZipfDistribution(accounts.size(), options.getDouble("zipf", 0.99));
+        Semaphore inFlight = new Semaphore(concurrency);
+        while (System.nanoTime() < endNanos) {
+            inFlight.acquire();
+            startOperation(report, distribution, System.nanoTime(), inFlight::release);
+        }
+        inFlight.acquire(concurrency);
+    }
+
+    private void startOperation(LatencyReport report, ZipfDistribution distribution, long startNanos, Runnable onDone) {
+        UniqueIdentifier account = accounts.get(distribution.next());
+        BigDecimal amount = new BigDecimal(options.get("amount", "10"));
+        boolean withdraw = ThreadLocalRandom.current().nextDouble() < options.getDouble("withdrawRatio", 0.3);
+        String operation = withdraw ? WITHDRAW : DEPOSIT;
+        CordaFuture<SignedTransaction> result;
+        try {
+            result = withdraw
+                    ? proxy().startFlow(Withdraw.WithdrawInitiator.class, account, amount).getReturnValue()
+                    : proxy().startFlow(Deposit.DepositInitiator.class, account, amount).getReturnValue();
+        } catch (Exception e) {
+            report.recordError(operation);
+            onDone.run();
+            return;
+        }
+        whenDone(result, (tx, error) -> {
+            if (error == null) report.record(operation, System.nanoTime() - startNanos);
+            else report.recordError(operation);
+            onDone.run();
+        });
+    }
+
+    private CordaRPCOps proxy() {
+        return connections.get(Math.floorMod(nextProxy.getAndIncrement(), connections.size())).getProxy();
+    }
+
+    private static <T> void whenDone(CordaFuture<T> future, BiConsumer<T, Throwable> callback) {
+        future.toCompletableFuture().whenComplete(callback);
+    }
+}
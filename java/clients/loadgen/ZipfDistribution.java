@@ -0,0 +1,33 @@
+package com.template.loadgen;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Picks account indexes in [0, n) with Zipfian skew: index k is drawn with probability proportional
+ * to 1 / (k + 1)^exponent. An exponent of 0 gives a uniform distribution; around 1 a handful of hot
+ * accounts receive most of the traffic.
+ */
+public class ZipfDistribution {
+    private final double[] cumulative;
+
+    public ZipfDistribution(int n, double exponent) {
+        if (n < 1) throw new IllegalArgumentException("n must be greater than 0");
+        if (exponent < 0) throw new IllegalArgumentException("exponent cannot be negative");
+        cumulative = new double[n];
+        double sum = 0;
+        for (int k = 0; k < n; k++) {
+            sum += 1.0 / Math.pow(k + 1, exponent);
+            cumulative[k] = sum;
+        }
+        for (int k = 0; k < n; k++) {
+            cumulative[k] /= sum;
+        }
+    }
+
+    public int next() {
+        double u = ThreadLocalRandom.current().nextDouble();
+        int index = Arrays.binarySearch(cumulative, u);
+        return Math.min(index >= 0 ? index : -index - 1, cumulative.length - 1);
+    }
+}
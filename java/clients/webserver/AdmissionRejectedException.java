@@ -0,0 +1,15 @@
+package com.template.webserver;
+
+/**
+ * A flow was not started because FlowAdmission is saturated; the client should retry after retryAfterSeconds.
+ */
+public class AdmissionRejectedException extends RuntimeException {
+    private final long retryAfterSeconds;
+
+    public AdmissionRejectedException(String message, long retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public long getRetryAfterSeconds() { return retryAfterSeconds; }
+}
@@ -0,0 +1,218 @@
+package com.template.webserver;
+
+import com.template.flows.BalanceScan;
+import com.template.states.Balance;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.messaging.CordaRPCOps;
+import net.corda.core.messaging.DataFeed;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.QueryCriteria;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import rx.Subscription;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Read model of the node's unconsumed balances, kept current by a single vaultTrack subscription.
+ *
+ * Entries are evicted least-recently-used once config.cache.maxBalances is reached. While nothing has
+ * been evicted the cache holds every balance and can answer GET /balances on its own; single-balance
+ * lookups that miss go to the vault and are cached. The cache reloads from a paged vault query
+ * whenever the RPC connection carrying its feed reconnects or the feed fails. Other components can
+ * listen to the same feed instead of opening their own.
+ */
+@Component
+public class BalanceCache {
+    private final static Logger logger = LoggerFactory.getLogger(BalanceCache.class);
+
+    // The maximum number of balances kept in memory.
+    @Value("${config.cache.maxBalances:100000}")
+    private int maxBalances;
+
+    private final NodeRPCConnection rpc;
+    private final CordaRPCOps proxy;
+
+    // guarded by this
+    private LinkedHashMap<UniqueIdentifier, StateAndRef<Balance>> balances;
+    private boolean complete = false;
+    private List<Vault.Update<Balance>> pendingUpdates = null;
+    private Subscription subscription;
+    // bumped by every reload, so updates from a dropped subscription are recognised
+    private long generation = 0;
+    // account id -> stripe count of every striped account seen; an account's stripe count never changes,
+    // so entries survive eviction and reloads
+    private final Map<String, Integer> stripeCounts = new HashMap<>();
+    private final List<Consumer<Vault.Update<Balance>>> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean reloadRequested = new AtomicBoolean();
+    private final ExecutorService reloader = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "balance-cache-reload");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public BalanceCache(NodeRPCConnection rpc) {
+        this.rpc = rpc;
+        this.proxy = rpc.proxy;
+    }
+
+    @PostConstruct
+    public void start() {
+        balances = new LinkedHashMap<UniqueIdentifier, StateAndRef<Balance>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UniqueIdentifier, StateAndRef<Balance>> eldest) {
+                if (size() <= maxBalances) return false;
+                complete = false;
+                return true;
+            }
+        };
+        rpc.addReconnectListener(this::reload);
+        reload();
+    }
+
+    /**
+     * Ask for the cache to be rebuilt. Reloads run one at a time on their own thread, and requests made
+     * before a reload has started share it, so a burst of reconnects or feed errors costs one reload.
+     */
+    public void reload() {
+        if (reloadRequested.compareAndSet(false, true)) {
+            reloader.execute(this::load);
+        }
+    }
+
+    /**
+     * Drop the previous subscription, resubscribe on the feed connection and rebuild the cache from the
+     * vault with BalanceScan's keyset paging, so concurrent changes cannot shift states between pages. Updates
+     * that arrive while later pages are being read are held back and applied afterwards, so a page cannot
+     * reintroduce a consumed state. Updates still in flight from a dropped subscription are ignored.
+     */
+    private void load() {
+        reloadRequested.set(false);
+        QueryCriteria criteria = new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED);
+        final long current;
+        synchronized (this) {
+            if (subscription != null) subscription.unsubscribe();
+            subscription = null;
+            current = ++generation;
+            balances.clear();
+            complete = false;
+            pendingUpdates = new ArrayList<>();
+        }
+        Subscription newSubscription = null;
+        try {
+            DataFeed<Vault.Page<Balance>, Vault.Update<Balance>> feed =
+                    rpc.feedProxy.vaultTrackBy(criteria, BalanceScan.firstPage(), BalanceScan.order(), Balance.class);
+            newSubscription = feed.getUpdates().subscribe(update -> apply(current, update), error -> {
+                logger.warn("Balance feed failed, reloading", error);
+                synchronized (this) {
+                    if (generation != current) return;
+                }
+                reload();
+            });
+            List<StateAndRef<Balance>> loaded = new ArrayList<>();
+            long total = feed.getSnapshot().getTotalStatesAvailable();
+            BalanceScan.scan(feed.getSnapshot(), criteria,
+                    (pageCriteria, paging, sort) -> proxy.vaultQueryBy(pageCriteria, paging, sort, Balance.class),
+                    page -> {
+                        loaded.addAll(page);
+                        return loaded.size() <= maxBalances;
+                    });
+            synchronized (this) {
+                subscription = newSubscription;
+                complete = total <= maxBalances;
+                loaded.forEach(this::put);
+                List<Vault.Update<Balance>> held = pendingUpdates;
+                pendingUpdates = null;
+                held.forEach(update -> apply(current, update));
+            }
+            logger.info("Balance cache loaded {} of {} balances", loaded.size(), total);
+        } catch (RuntimeException e) {
+            // single-balance lookups still go to the vault; the next reconnect or feed error reloads
+            logger.warn("Balance cache reload failed", e);
+            synchronized (this) {
+                if (newSubscription != null) newSubscription.unsubscribe();
+                balances.clear();
+                complete = false;
+                pendingUpdates = null;
+            }
+        }
+    }
+
+    private synchronized void apply(long fromGeneration, Vault.Update<Balance> update) {
+        if (fromGeneration != generation) return;
+        if (pendingUpdates != null) {
+            pendingUpdates.add(update);
+            return;
+        }
+        for (StateAndRef<Balance> consumed : update.getConsumed()) {
+            balances.remove(consumed.getState().getData().getLinearId(), consumed);
+        }
+        update.getProduced().forEach(this::put);
+        listeners.forEach(listener -> listener.accept(update));
+    }
+
+    /**
+     * Receives every vault update once it has been applied to the cache. Listeners run on the feed's
+     * thread while the cache is locked, so they must only hand the update off.
+     */
+    public void addListener(Consumer<Vault.Update<Balance>> listener) {
+        listeners.add(listener);
+    }
+
+    private void put(StateAndRef<Balance> stateAndRef) {
+        Balance balance = stateAndRef.getState().getData();
+        balances.put(balance.getLinearId(), stateAndRef);
+        if (balance.isStriped()) {
+            stripeCounts.put(balance.getAccountId().getId().toString(), balance.getStripeCount());
+        }
+    }
+
+    /**
+     * The number of stripes behind accountId: 1 for a plain account, or for one the cache has not seen.
+     */
+    public synchronized int stripeCount(String accountId) {
+        return stripeCounts.getOrDefault(accountId, 1);
+    }
+
+    /**
+     * Every balance, or empty if the cache is not holding all of them (still loading or evicted).
+     */
+    public synchronized Optional<List<StateAndRef<Balance>>> getAll() {
+        if (!complete || pendingUpdates != null) return Optional.empty();
+        return Optional.of(new ArrayList<>(balances.values()));
+    }
+
+    /**
+     * One balance by linearId, loaded from the vault and cached on a miss.
+     */
+    public Optional<StateAndRef<Balance>> get(UniqueIdentifier linearId) {
+        synchronized (this) {
+            StateAndRef<Balance> cached = balances.get(linearId);
+            if (cached != null) return Optional.of(cached);
+        }
+        QueryCriteria criteria = new QueryCriteria.LinearStateQueryCriteria().withUuid(Collections.singletonList(linearId.getId()));
+        List<StateAndRef<Balance>> states = proxy.vaultQueryByCriteria(criteria, Balance.class).getStates();
+        if (states.isEmpty()) return Optional.empty();
+        synchronized (this) {
+            // a newer version may have arrived from the feed while we were querying
+            return Optional.of(balances.computeIfAbsent(linearId, id -> states.get(0)));
+        }
+    }
+
+    @PreDestroy
+    public synchronized void close() {
+        reloader.shutdownNow();
+        generation++;
+        if (subscription != null) subscription.unsubscribe();
+    }
+}
@@ -0,0 +1,173 @@
+package com.template.webserver;
+
+import com.template.states.Balance;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.node.services.Vault;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Relays balance changes from the BalanceCache feed to Server-Sent Events subscribers.
+ *
+ * Each subscriber has its own filter (accounts and/or currency) and a pending map keyed by linearId.
+ * A slow subscriber never blocks the feed: newer deltas for the same balance replace older unsent
+ * ones, and a subscriber that falls more than config.stream.maxPending balances behind is dropped.
+ */
+@Component
+public class BalanceUpdateStream {
+    private final static Logger logger = LoggerFactory.getLogger(BalanceUpdateStream.class);
+
+    // The number of distinct balances a subscriber may have waiting before it is disconnected.
+    @Value("${config.stream.maxPending:10000}")
+    private int maxPending;
+    // How long an SSE connection stays open, 0 for no limit.
+    @Value("${config.stream.timeoutMillis:0}")
+    private long timeoutMillis;
+
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final ExecutorService senders = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "balance-sse");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public BalanceUpdateStream(BalanceCache balanceCache) {
+        balanceCache.addListener(this::publish);
+    }
+
+    /**
+     * Open a stream of deltas for the given accounts (all if empty) in the given currency (any if null).
+     */
+    public SseEmitter subscribe(Set<UUID> accountIds, String currency) {
+        SseEmitter emitter = new SseEmitter(timeoutMillis);
+        Subscriber subscriber = new Subscriber(emitter, accountIds, currency);
+        subscribers.add(subscriber);
+        emitter.onCompletion(() -> subscribers.remove(subscriber));
+        emitter.onTimeout(() -> subscribers.remove(subscriber));
+        emitter.onError(error -> subscribers.remove(subscriber));
+        return emitter;
+    }
+
+    private void publish(Vault.Update<Balance> update) {
+        if (subscribers.isEmpty()) return;
+        for (StateAndRef<Balance> produced : update.getProduced()) {
+            BalanceDelta delta = new BalanceDelta(produced);
+            for (Subscriber subscriber : subscribers) {
+                if (subscriber.accepts(produced.getState().getData())) subscriber.offer(delta);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        senders.shutdownNow();
+        subscribers.forEach(subscriber -> subscriber.emitter.complete());
+    }
+
+    private class Subscriber {
+        final SseEmitter emitter;
+        final Set<UUID> accountIds;
+        final String currency;
+        // guarded by this
+        private LinkedHashMap<UniqueIdentifier, BalanceDelta> pending = new LinkedHashMap<>();
+        private boolean draining = false;
+
+        Subscriber(SseEmitter emitter, Set<UUID> accountIds, String currency) {
+            this.emitter = emitter;
+            this.accountIds = accountIds;
+            this.currency = currency;
+        }
+
+        boolean accepts(Balance balance) {
+            return (accountIds.isEmpty() || accountIds.contains(balance.getAccountId().getId()))
+                    && (currency == null || currency.equals(balance.getCurrency()));
+        }
+
+        void offer(BalanceDelta delta) {
+            synchronized (this) {
+                // coalesce: only the latest unsent delta per balance is kept
+                pending.remove(delta.linearId);
+                pending.put(delta.linearId, delta);
+                if (pending.size() > maxPending) {
+                    subscribers.remove(this);
+                    pending.clear();
+                    emitter.completeWithError(new IllegalStateException("Subscriber fell too far behind"));
+                    return;
+                }
+                if (draining) return;
+                draining = true;
+            }
+            senders.execute(this::drain);
+        }
+
+        private void drain() {
+            while (true) {
+                Collection<BalanceDelta> batch;
+                synchronized (this) {
+                    if (pending.isEmpty()) {
+                        draining = false;
+                        return;
+                    }
+                    batch = pending.values();
+                    pending = new LinkedHashMap<>();
+                }
+                try {
+                    for (BalanceDelta delta : batch) {
+                        emitter.send(SseEmitter.event().name("balance").data(delta, MediaType.APPLICATION_JSON));
+                    }
+                } catch (IOException | IllegalStateException e) {
+                    logger.debug("Dropping balance update subscriber", e);
+                    subscribers.remove(this);
+                    emitter.completeWithError(e);
+                    synchronized (this) {
+                        draining = false;
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * The compact event sent to subscribers.
+     */
+    public static class BalanceDelta {
+        private final UniqueIdentifier linearId;
+        private final UniqueIdentifier accountId;
+        private final String currency;
+        private final BigDecimal balance;
+        private final String txId;
+
+        BalanceDelta(StateAndRef<Balance> stateAndRef) {
+            Balance state = stateAndRef.getState().getData();
+            this.linearId = state.getLinearId();
+            this.accountId = state.getAccountId();
+            this.currency = state.getCurrency();
+            this.balance = state.getBalance();
+            this.txId = stateAndRef.getRef().getTxhash().toString();
+        }
+
+        public String getLinearId() { return linearId.getId().toString(); }
+
+        public String getAccountId() { return accountId.getId().toString(); }
+
+        public String getCurrency() { return currency; }
+
+        public BigDecimal getBalance() { return balance; }
+
+        public String getTxId() { return txId; }
+    }
+}
@@ -0,0 +1,56 @@
+package com.template.webserver;
+
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import com.template.states.Balance;
+import net.corda.core.contracts.StateAndRef;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * The flat projection of a balance the read endpoints return, instead of the full StateAndRef with its
+ * notary and issuer structures. Amounts are exact, in major units; ref is "txhash:index".
+ */
+@JsonPropertyOrder({"linearId", "accountId", "currency", "moneyIn", "moneyOut", "balance", "ref"})
+public class BalanceView {
+    private final String linearId;
+    private final String accountId;
+    private final String currency;
+    private final BigDecimal moneyIn;
+    private final BigDecimal moneyOut;
+    private final BigDecimal balance;
+    private final String ref;
+
+    BalanceView(StateAndRef<Balance> stateAndRef) {
+        Balance state = stateAndRef.getState().getData();
+        int digits = Balance.fractionDigits(state.getCurrency());
+        this.linearId = state.getLinearId().getId().toString();
+        this.accountId = state.getAccountId().getId().toString();
+        this.currency = state.getCurrency();
+        this.moneyIn = BigDecimal.valueOf(state.getMoneyInMinor(), digits);
+        this.moneyOut = BigDecimal.valueOf(state.getMoneyOutMinor(), digits);
+        this.balance = state.getBalance();
+        this.ref = stateAndRef.getRef().getTxhash() + ":" + stateAndRef.getRef().getIndex();
+    }
+
+    static BalanceView of(StateAndRef<Balance> stateAndRef) { return new BalanceView(stateAndRef); }
+
+    static List<BalanceView> of(List<StateAndRef<Balance>> states) {
+        return states.stream().map(BalanceView::new).collect(Collectors.toList());
+    }
+
+    public String getLinearId() { return linearId; }
+
+    public String getAccountId() { return accountId; }
+
+    public String getCurrency() { return currency; }
+
+    public BigDecimal getMoneyIn() { return moneyIn; }
+
+    public BigDecimal getMoneyOut() { return moneyOut; }
+
+    public BigDecimal getBalance() { return balance; }
+
+    public String getRef() { return ref; }
+}
@@ -0,0 +1,94 @@
+package com.template.webserver;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractGenericHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.http.converter.HttpMessageNotWritableException;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes BalanceView and List<BalanceView> responses as JSON or, when the client sends
+ * Accept: application/cbor, as CBOR.
+ *
+ * The writers are built once for the exact types, so a response skips the per-request serializer
+ * lookup the generic Jackson converter does. Writes are timed as http.view.write by format.
+ */
+@Component
+public class BalanceViewConverter extends AbstractGenericHttpMessageConverter<Object> {
+    public final static String CBOR_VALUE = "application/cbor";
+    public final static MediaType CBOR = MediaType.parseMediaType(CBOR_VALUE);
+
+    // Also used for the NDJSON stream, so it never closes the response between lines.
+    final static ObjectWriter JSON_VIEW = new ObjectMapper()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+            .writerFor(BalanceView.class);
+    private final static ObjectWriter JSON_LIST = new ObjectMapper().writerFor(new TypeReference<List<BalanceView>>() {});
+    private final static ObjectWriter CBOR_VIEW = new ObjectMapper(new CBORFactory()).writerFor(BalanceView.class);
+    private final static ObjectWriter CBOR_LIST = new ObjectMapper(new CBORFactory()).writerFor(new TypeReference<List<BalanceView>>() {});
+
+    private final Timer jsonTimer;
+    private final Timer cborTimer;
+
+    public BalanceViewConverter(MeterRegistry meterRegistry) {
+        super(MediaType.APPLICATION_JSON, CBOR);
+        this.jsonTimer = Timer.builder("http.view.write").tag("format", "json")
+                .description("Time spent serialising and writing balance views").register(meterRegistry);
+        this.cborTimer = Timer.builder("http.view.write").tag("format", "cbor")
+                .description("Time spent serialising and writing balance views").register(meterRegistry);
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) { return BalanceView.class == clazz; }
+
+    @Override
+    public boolean canWrite(Type type, Class<?> clazz, MediaType mediaType) {
+        return (BalanceView.class == clazz || isViewList(type)) && canWrite(mediaType);
+    }
+
+    @Override
+    public boolean canRead(Type type, Class<?> contextClass, MediaType mediaType) { return false; }
+
+    private static boolean isViewList(Type type) {
+        if (!(type instanceof ParameterizedType)) return false;
+        ParameterizedType parameterized = (ParameterizedType) type;
+        return parameterized.getRawType() instanceof Class && List.class.isAssignableFrom((Class<?>) parameterized.getRawType())
+                && parameterized.getActualTypeArguments()[0] == BalanceView.class;
+    }
+
+    @Override
+    protected void writeInternal(Object object, Type type, HttpOutputMessage outputMessage) throws IOException, HttpMessageNotWritableException {
+        boolean cbor = CBOR.isCompatibleWith(outputMessage.getHeaders().getContentType());
+        ObjectWriter writer = object instanceof List ? (cbor ? CBOR_LIST : JSON_LIST) : (cbor ? CBOR_VIEW : JSON_VIEW);
+        long start = System.nanoTime();
+        try {
+            writer.writeValue(outputMessage.getBody(), object);
+        } finally {
+            (cbor ? cborTimer : jsonTimer).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @Override
+    protected Object readInternal(Class<?> clazz, HttpInputMessage inputMessage) throws HttpMessageNotReadableException {
+        throw new HttpMessageNotReadableException("Balance views are write-only", inputMessage);
+    }
+
+    @Override
+    public Object read(Type type, Class<?> contextClass, HttpInputMessage inputMessage) throws HttpMessageNotReadableException {
+        return readInternal(BalanceView.class, inputMessage);
+    }
+}
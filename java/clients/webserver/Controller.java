@@ -1,26 +1,60 @@
 package com.template.webserver;
 
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import net.corda.core.concurrent.CordaFuture;
 import net.corda.core.contracts.*;
 import net.corda.core.messaging.CordaRPCOps;
+import net.corda.core.messaging.FlowHandle;
 import net.corda.core.node.NodeInfo;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.Builder;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.Sort;
+import net.corda.core.node.services.vault.SortAttribute;
 import net.corda.core.transactions.SignedTransaction;
 
+import java.math.BigDecimal;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
-import com.template.flows.*
+import com.template.flows.*;
+import com.template.schemas.BalanceSchemaV2;
 import com.template.states.Balance;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.lang.reflect.Field;
+import java.net.URI;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import static com.template.webserver.BalanceViewConverter.CBOR_VALUE;
 import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
+import static org.springframework.http.MediaType.TEXT_EVENT_STREAM_VALUE;
 import static org.springframework.http.MediaType.TEXT_PLAIN_VALUE;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -33,10 +67,45 @@ import org.springframework.web.bind.annotation.RestController;
 @RequestMapping("/") // The paths for HTTP requests are relative to this base path.
 public class Controller {
     private final CordaRPCOps proxy;
+    private final BalanceCache balanceCache;
+    private final BalanceUpdateStream balanceUpdateStream;
+    private final MeterRegistry meterRegistry;
+    private final PrometheusMeterRegistry prometheusRegistry;
+    private final FlowAdmission admission;
+    private final PostingStore postingStore;
+    private final StatementCache statementCache;
     private final static Logger logger = LoggerFactory.getLogger(Controller.class);
+    private final static String NDJSON_VALUE = "application/x-ndjson";
+    private final static Pattern POSTING_ID = Pattern.compile("[A-Za-z0-9._-]{1,128}");
+    // paging needs a total order, otherwise states can repeat or go missing between pages
+    private final static Sort STABLE_ORDER = new Sort(Arrays.asList(
+            new Sort.SortColumn(new SortAttribute.Standard(Sort.VaultStateAttribute.RECORDED_TIME), Sort.Direction.ASC),
+            new Sort.SortColumn(new SortAttribute.Standard(Sort.CommonStateAttribute.STATE_REF), Sort.Direction.ASC)));
 
-    public Controller(NodeRPCConnection rpc) {
+    // The number of balances issued per BulkIssueBalance flow by POST /create-balances.
+    @Value("${config.bulk.batchSize:10000}")
+    private int bulkBatchSize;
+    // The number of BulkIssueBalance flows POST /create-balances keeps in flight.
+    @Value("${config.bulk.parallelism:2}")
+    private int bulkParallelism;
+    // The number of flows one POST /postings/batch request keeps in flight.
+    @Value("${config.postings.maxInFlight:64}")
+    private int postingsMaxInFlight;
+    // Retry-After for async postings refused because the PostingStore is full of pending ones.
+    @Value("${config.postings.store.retryAfterSeconds:1}")
+    private long postingStoreRetryAfterSeconds;
+
+    public Controller(NodeRPCConnection rpc, BalanceCache balanceCache, BalanceUpdateStream balanceUpdateStream,
+                      MeterRegistry meterRegistry, PrometheusMeterRegistry prometheusRegistry, FlowAdmission admission,
+                      PostingStore postingStore, StatementCache statementCache) {
         this.proxy = rpc.proxy;
+        this.balanceCache = balanceCache;
+        this.balanceUpdateStream = balanceUpdateStream;
+        this.meterRegistry = meterRegistry;
+        this.prometheusRegistry = prometheusRegistry;
+        this.admission = admission;
+        this.postingStore = postingStore;
+        this.statementCache = statementCache;
     }
 
     @GetMapping(value = "/flows", produces = TEXT_PLAIN_VALUE)
@@ -44,91 +113,591 @@ public class Controller {
         return proxy.registeredFlows().toString();
     }
 
-    @GetMapping(value = "/balances",produces = APPLICATION_JSON_VALUE)
-    public List<StateAndRef<Balance>> getBalances() {
+    /**
+     * Prometheus scrape of the webserver's meters: RPC pool queueing and round trips (rpc.pool.*),
+     * flow round trips (rpc.flow), JSON serialisation (http.json.write), balance view serialisation
+     * (http.view.write), admission control (admission.*) and the node's per-stage
+     * flow timings and failure counts (node.flow.*).
+     */
+    @GetMapping(value = "/metrics", produces = TEXT_PLAIN_VALUE)
+    public String metrics() {
+        return prometheusRegistry.scrape();
+    }
+
+    /**
+     * One page of balances in a stable (recorded time, state ref) order.
+     * The X-Total-States header carries the total count and X-Next-Page the page to request next, if any.
+     * Without page/size, every balance is returned from the BalanceCache when it holds all of them.
+     * Balances are flat BalanceViews, as JSON or, with Accept: application/cbor, as CBOR; so are the other
+     * balance queries below.
+     */
+    @GetMapping(value = "/balances", produces = {APPLICATION_JSON_VALUE, CBOR_VALUE})
+    public ResponseEntity<List<BalanceView>> getBalances(@RequestParam(required = false) Integer page,
+                                                                  @RequestParam(required = false) Integer size) {
+        requirePaging(page == null ? 1 : page, size == null ? 1 : size);
+        if (page == null && size == null) {
+            Optional<List<StateAndRef<Balance>>> cached = balanceCache.getAll();
+            if (cached.isPresent()) {
+                return ResponseEntity.ok().header("X-Total-States", String.valueOf(cached.get().size())).body(BalanceView.of(cached.get()));
+            }
+        }
+        return getBalancePage(page == null ? 1 : page, size == null ? 200 : size);
+    }
+
+    private ResponseEntity<List<BalanceView>> getBalancePage(int page, int size) {
         // Filter by state type: Balance.
-        return proxy.vaultQuery(Balance.class).getStates();
+        Vault.Page<Balance> result = proxy.vaultQueryBy(new QueryCriteria.VaultQueryCriteria(),
+                new PageSpecification(page, size), STABLE_ORDER, Balance.class);
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok().header("X-Total-States", String.valueOf(result.getTotalStatesAvailable()));
+        if ((long) page * size < result.getTotalStatesAvailable()) {
+            response.header("X-Next-Page", String.valueOf(page + 1));
+        }
+        return response.body(BalanceView.of(result.getStates()));
+    }
+
+    /**
+     * One balance by linearId, served from the BalanceCache.
+     */
+    @GetMapping(value = "/balances/{id}", produces = {APPLICATION_JSON_VALUE, CBOR_VALUE})
+    public ResponseEntity<BalanceView> getBalance(@PathVariable String id) {
+        return balanceCache.get(new UniqueIdentifier(null, uuid("id", id)))
+                .map(state -> ResponseEntity.ok(BalanceView.of(state)))
+                .orElseGet(() -> ResponseEntity.notFound().build());
+    }
+
+    /**
+     * Statement of an account: every version of its balance (all stripes, consumed or not) recorded between
+     * from and to (ISO-8601 instants, to defaults to now), oldest first, with the delta from the version
+     * before, the command and the tx. Paged like /balances, with X-Total-States and X-Next-Page.
+     * Pages of periods that had ended are kept in the StatementCache.
+     */
+    @GetMapping(value = "/balances/{id}/history", produces = APPLICATION_JSON_VALUE)
+    public CompletableFuture<ResponseEntity<?>> getHistory(@PathVariable String id,
+                                                           @RequestParam(required = false) String from,
+                                                           @RequestParam(required = false) String to,
+                                                           @RequestParam(defaultValue = "1") int page,
+                                                           @RequestParam(defaultValue = "200") int size) {
+        UniqueIdentifier accountId = new UniqueIdentifier(null, uuid("id", id));
+        requirePaging(page, size);
+        Instant now = Instant.now();
+        Instant start, end;
+        try {
+            start = from == null ? Instant.EPOCH : Instant.parse(from);
+            end = to == null ? now : Instant.parse(to);
+        } catch (DateTimeParseException e) {
+            return CompletableFuture.completedFuture(errorResponse(e));
+        }
+        Optional<StatementCache.Statement> cached = statementCache.get(id, start, end, page, size);
+        if (cached.isPresent()) {
+            return CompletableFuture.completedFuture(historyPage(cached.get(), page, size));
+        }
+        // read-only, so it skips admission like NodeFlowMetrics' polling does
+        CompletableFuture<BalanceHistory.Page> history;
+        try {
+            history = proxy.startFlow(BalanceHistory.BalanceHistoryInitiator.class, accountId, start, end, page, size)
+                    .getReturnValue().toCompletableFuture();
+        } catch (Exception e) {
+            history = failed(e);
+        }
+        return history.<ResponseEntity<?>>thenApply(result -> {
+                    StatementCache.Statement statement = new StatementCache.Statement(HistoryView.of(result.getEntries()), result.getTotalStatesAvailable());
+                    statementCache.put(id, start, end, page, size, now, statement);
+                    return historyPage(statement, page, size);
+                })
+                .exceptionally(Controller::errorResponse);
+    }
+
+    private static ResponseEntity<List<HistoryView>> historyPage(StatementCache.Statement statement, int page, int size) {
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok().header("X-Total-States", String.valueOf(statement.getTotalStatesAvailable()));
+        if ((long) page * size < statement.getTotalStatesAvailable()) {
+            response.header("X-Next-Page", String.valueOf(page + 1));
+        }
+        return response.body(statement.getEntries());
+    }
+
+    /**
+     * Server-Sent Events stream of balance changes (linearId, accountId, currency, new balance, tx id).
+     * Optional accountId (repeatable) and currency parameters filter the stream.
+     */
+    @GetMapping(value = "/balances/updates", produces = TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamBalanceUpdates(@RequestParam(required = false) List<String> accountId,
+                                           @RequestParam(required = false) String currency) {
+        Set<UUID> accountIds = accountId == null ? Collections.emptySet()
+                : accountId.stream().map(id -> uuid("accountId", id)).collect(Collectors.toSet());
+        return balanceUpdateStream.subscribe(accountIds, currency);
+    }
+
+    /**
+     * Every balance as newline-delimited JSON BalanceViews. Pages are fetched over RPC one at a time and written
+     * to the chunked response as they arrive, so neither side buffers the whole vault. Pages are read with
+     * BalanceScan's keyset on linear_id, so postings made while the stream runs cannot shift a balance
+     * between pages and have it written twice or skipped.
+     */
+    @GetMapping(value = "/balances/stream", produces = NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> streamBalances(@RequestParam(defaultValue = "1000") int pageSize) {
+        if (pageSize < 1) throw new IllegalArgumentException("pageSize must be at least 1");
+        StreamingResponseBody body = out -> {
+            QueryCriteria criteria = new QueryCriteria.VaultQueryCriteria();
+            Vault.Page<Balance> first = proxy.vaultQueryBy(criteria, BalanceScan.firstPage(pageSize), BalanceScan.order(), Balance.class);
+            try {
+                BalanceScan.scan(first, criteria, pageSize,
+                        (pageCriteria, paging, sort) -> proxy.vaultQueryBy(pageCriteria, paging, sort, Balance.class),
+                        states -> {
+                            try {
+                                for (StateAndRef<Balance> state : states) {
+                                    BalanceViewConverter.JSON_VIEW.writeValue(out, BalanceView.of(state));
+                                    out.write('\n');
+                                }
+                                out.flush();
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                            return true;
+                        });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        };
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType(NDJSON_VALUE)).body(body);
+    }
+
+    /**
+     * Balances in one currency, filtered in SQL through the balance_states schema.
+     */
+    @GetMapping(value = "/balances/currency/{currency}", produces = {APPLICATION_JSON_VALUE, CBOR_VALUE})
+    public List<BalanceView> getBalancesByCurrency(@PathVariable String currency,
+                                                            @RequestParam(defaultValue = "1") int page,
+                                                            @RequestParam(defaultValue = "200") int size) {
+        requirePaging(page, size);
+        QueryCriteria criteria = new QueryCriteria.VaultCustomQueryCriteria(Builder.equal(balanceColumn("currency"), currency));
+        return BalanceView.of(proxy.vaultQueryBy(criteria, new PageSpecification(page, size), sortByBalance(Sort.Direction.ASC), Balance.class).getStates());
+    }
+
+    /**
+     * Balances between min and max (either bound optional), optionally in one currency, sorted by balance.
+     * Bounds are in major units and the column holds minor units, so a bound needs the currency.
+     * Each row is one balance state: a striped account appears once per stripe, each stripe compared with
+     * the bounds on its own. Rows carry accountId so clients can add a striped account's stripes up. The
+     * vault cannot filter or page on a per-account sum, so the query stays on the indexed balance column.
+     */
+    @GetMapping(value = "/balances/range", produces = {APPLICATION_JSON_VALUE, CBOR_VALUE})
+    public List<BalanceView> getBalancesInRange(@RequestParam(required = false) BigDecimal min,
+                                                         @RequestParam(required = false) BigDecimal max,
+                                                         @RequestParam(required = false) String currency,
+                                                         @RequestParam(defaultValue = "1") int page,
+                                                         @RequestParam(defaultValue = "200") int size) {
+        requirePaging(page, size);
+        if ((min != null || max != null) && currency == null) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "min and max need a currency");
+        }
+        QueryCriteria criteria = new QueryCriteria.VaultQueryCriteria();
+        if (min != null) {
+            criteria = criteria.and(new QueryCriteria.VaultCustomQueryCriteria(Builder.greaterThanOrEqual(balanceColumn("balance"), minorUnits(min, currency))));
+        }
+        if (max != null) {
+            criteria = criteria.and(new QueryCriteria.VaultCustomQueryCriteria(Builder.lessThanOrEqual(balanceColumn("balance"), minorUnits(max, currency))));
+        }
+        if (currency != null) {
+            criteria = criteria.and(new QueryCriteria.VaultCustomQueryCriteria(Builder.equal(balanceColumn("currency"), currency)));
+        }
+        return BalanceView.of(proxy.vaultQueryBy(criteria, new PageSpecification(page, size), sortByBalance(Sort.Direction.ASC), Balance.class).getStates());
+    }
+
+    /**
+     * The n largest balances, optionally in one currency - sorted and limited by the database.
+     * Like /balances/range, this ranks balance states, so a striped account ranks stripe by stripe.
+     */
+    @GetMapping(value = "/balances/top", produces = {APPLICATION_JSON_VALUE, CBOR_VALUE})
+    public List<BalanceView> getTopBalances(@RequestParam(defaultValue = "10") int n,
+                                                     @RequestParam(required = false) String currency) {
+        if (n < 1) throw new IllegalArgumentException("n must be at least 1");
+        QueryCriteria criteria = currency == null
+                ? new QueryCriteria.VaultQueryCriteria()
+                : new QueryCriteria.VaultCustomQueryCriteria(Builder.equal(balanceColumn("currency"), currency));
+        return BalanceView.of(proxy.vaultQueryBy(criteria, new PageSpecification(1, n), sortByBalance(Sort.Direction.DESC), Balance.class).getStates());
+    }
+
+    private static Field balanceColumn(String name) {
+        try {
+            return BalanceSchemaV2.PersistentBalance.class.getDeclaredField(name);
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException("balance_states_v2 has no column " + name, e);
+        }
+    }
+
+    private static long minorUnits(BigDecimal amount, String currency) {
+        try {
+            return Balance.toMinorUnits(amount, currency);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+    }
+
+    private static Sort sortByBalance(Sort.Direction direction) {
+        return new Sort(Collections.singletonList(new Sort.SortColumn(
+                new SortAttribute.Custom(BalanceSchemaV2.PersistentBalance.class, "balance"), direction)));
+    }
+
+    /**
+     * Total moneyIn, moneyOut and balance per currency, read from the node's running CurrencyTotals rather
+     * than by summing balances, so it costs O(currencies). 503 while the node is still building them.
+     */
+    @GetMapping(value = "/totals", produces = APPLICATION_JSON_VALUE)
+    public CompletableFuture<ResponseEntity<?>> getTotals() {
+        CompletableFuture<List<CurrencyTotals.Totals>> totals;
+        try {
+            totals = proxy.startFlow(GetCurrencyTotals.GetCurrencyTotalsInitiator.class).getReturnValue().toCompletableFuture();
+        } catch (Exception e) {
+            totals = failed(e);
+        }
+        return totals.<ResponseEntity<?>>thenApply(result -> ResponseEntity.ok(TotalsView.of(result)))
+                .exceptionally(error -> ResponseEntity
+                        .status(HttpStatus.SERVICE_UNAVAILABLE)
+                        .body(error instanceof CompletionException && error.getCause() != null ? error.getCause().getMessage() : error.getMessage()));
+    }
+
+    /**
+     * Reported balance of an account - a plain balance, or the sum over all stripes of a striped account.
+     */
+    @GetMapping(value = "/accounts/{accountId}", produces = TEXT_PLAIN_VALUE)
+    public ResponseEntity<String> getAccount(@PathVariable String accountId) {
+        UUID id = uuid("accountId", accountId);
+        QueryCriteria criteria = new QueryCriteria.LinearStateQueryCriteria().withUuid(Collections.singletonList(id))
+                .or(new QueryCriteria.LinearStateQueryCriteria().withExternalId(Collections.singletonList(id.toString())));
+        List<StateAndRef<Balance>> states = proxy.vaultQueryByCriteria(criteria, Balance.class).getStates();
+        if (states.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("No balance found for " + accountId);
+        }
+        BigDecimal balance = states.stream().map(state -> state.getState().getData().getBalance()).reduce(BigDecimal.ZERO, BigDecimal::add);
+        return ResponseEntity.ok("BalanceId is " + accountId + "\n"
+                + "Balance currency is " + states.get(0).getState().getData().getCurrency() + "\n"
+                + "Balance is " + balance);
     }
 
     /**
      *
      * @param request - needs a initialCurrency parameter
-     * @return Custom Response
+     *                  optional stripes parameter opens a striped account for hot balances.
+     *                  optional async=true (and postingId) answers 202 at once, see accept.
+     * @return Custom Response, completed when the flow finishes - no servlet thread waits on the node.
      * @throws IllegalArgumentException
      */
     @PostMapping (value = "create-balance" , produces =  TEXT_PLAIN_VALUE , headers =  "Content-Type=application/x-www-form-urlencoded" )
-    public ResponseEntity<String> issueBalance(HttpServletRequest request) throws IllegalArgumentException {
+    public CompletableFuture<ResponseEntity<String>> issueBalance(HttpServletRequest request) throws IllegalArgumentException {
         // Get currency value from request
         String currency = request.getParameter("initialCurrency");
-        try {
-            //start flow using proxy RPC connection
-            SignedTransaction result = proxy.startFlow(IssueBalance.IssueBalanceInitiator.class, currency).getReturnValue().get();
-
-            return ResponseEntity
-                    .status(HttpStatus.CREATED)
-                    .body("Transaction id "+ result.getId() +" committed to ledger.\n "
-                            + "BalanceId is " + result.getTx().getOutput(0).getLinearId() + "\n"
-                            + "Balance currency is " + result.getTx().getOutput(0).getCurrency());
-        } catch (Exception e) {
-            return ResponseEntity
-                    .status(HttpStatus.BAD_REQUEST)
-                    .body(e.getMessage());
+        int stripes = request.getParameter("stripes") == null ? 1 : Integer.parseInt(request.getParameter("stripes"));
+        Supplier<FlowHandle<SignedTransaction>> flow = () -> proxy.startFlow(IssueBalance.IssueBalanceInitiator.class, currency, stripes);
+        if (Boolean.parseBoolean(request.getParameter("async"))) {
+            return accept(request, "issue", "issue " + currency + " in " + stripes + " stripes", Collections.emptyList(), flow);
         }
+        //start flow using proxy RPC connection
+        return startFlow("issue", () -> flow.get().getReturnValue())
+                .thenApply(result -> {
+                    Balance output = result.getTx().outputsOfType(Balance.class).get(0);
+                    return ResponseEntity
+                            .status(HttpStatus.CREATED)
+                            .body("Transaction id "+ result.getId() +" committed to ledger.\n "
+                                    + "BalanceId is " + output.getAccountId() + "\n"
+                                    + "Balance currency is " + output.getCurrency());
+                })
+                .exceptionally(Controller::errorResponse);
+    }
+
+    /**
+     *
+     * @param request - needs initialCurrency and count parameters.
+     * @return the new linearIds as newline-delimited JSON strings, written as each batch is notarised.
+     *         Batches of config.bulk.batchSize balances are issued by BulkIssueBalance flows, with
+     *         config.bulk.parallelism of them in flight; the node pipelines each batch's transactions.
+     */
+    @PostMapping (value = "create-balances" , produces = NDJSON_VALUE , headers =  "Content-Type=application/x-www-form-urlencoded" )
+    public ResponseEntity<StreamingResponseBody> issueBalances(HttpServletRequest request) throws IllegalArgumentException {
+        String currency = request.getParameter("initialCurrency");
+        int count = Integer.parseInt(request.getParameter("count"));
+        if (count < 1) throw new IllegalArgumentException("count must be greater than 0");
+        StreamingResponseBody body = out -> {
+            Deque<CompletableFuture<List<UniqueIdentifier>>> batches = new ArrayDeque<>();
+            int requested = 0, written = 0;
+            while (requested < count || !batches.isEmpty()) {
+                while (requested < count && batches.size() < bulkParallelism) {
+                    int batch = Math.min(bulkBatchSize, count - requested);
+                    batches.add(startFlow("bulk_issue", () -> proxy.startFlow(BulkIssueBalance.BulkIssueBalanceInitiator.class, currency, batch).getReturnValue()));
+                    requested += batch;
+                }
+                List<UniqueIdentifier> issued;
+                try {
+                    issued = batches.poll().join();
+                } catch (CompletionException e) {
+                    throw new IOException("Bulk issuance failed after " + written + " balances", e.getCause());
+                }
+                for (UniqueIdentifier linearId : issued) {
+                    out.write(('"' + linearId.getId().toString() + "\"\n").getBytes(StandardCharsets.UTF_8));
+                }
+                written += issued.size();
+                out.flush();
+            }
+        };
+        return ResponseEntity.status(HttpStatus.CREATED).contentType(MediaType.parseMediaType(NDJSON_VALUE)).body(body);
     }
 
     /**
      *
      * @param request - needs a balanceId and amount parameter in HTTP request.
-     * @return Customized Response
+     *                  optional combine=true routes the posting through the node's PostingCombiner.
+     *                  optional async=true (and postingId) answers 202 at once instead, see accept.
+     * @return Customized Response, completed when the flow finishes.
      * @throws IllegalArgumentException
      */
     @PostMapping (value = "deposit" , produces =  TEXT_PLAIN_VALUE , headers =  "Content-Type=application/x-www-form-urlencoded" )
-    public ResponseEntity<String> deposit(HttpServletRequest request) throws IllegalArgumentException {
-        // Get balanceId and amount value from request
-        UniqueIdentifier balanceId = UUID.fromString(request.getParameter("balanceId"));
-        double amount = Double.parseDouble(request.getParameter("amount"));
-
-        try {
-            //start flow using proxy RPC connection
-            SignedTransaction result = proxy.startFlow(Deposit.DepositInitiator.class, balanceId, amount).getReturnValue().get();
-
-            return ResponseEntity
-                    .status(HttpStatus.CREATED)
-                    .body("Transaction id "+ result.getId() +" committed to ledger.\n "
-                            + "BalanceId is " + result.getTx().getOutput(0).getLinearId() + "\n"
-                            + "Balance is " + result.getTx().getOutput(0).getBalance());
-        } catch (Exception e) {
-            return ResponseEntity
-                    .status(HttpStatus.BAD_REQUEST)
-                    .body(e.getMessage());
-        }
+    public CompletableFuture<ResponseEntity<String>> deposit(HttpServletRequest request) throws IllegalArgumentException {
+        return post(request, BatchPosting.Posting.Type.DEPOSIT);
     }
 
     /**
      *
      * @param request - needs a balanceId and amount parameter in HTTP request.
-     * @return Customized Response
+     *                  optional combine=true routes the posting through the node's PostingCombiner.
+     *                  optional async=true (and postingId) answers 202 at once instead, see accept.
+     * @return Customized Response, completed when the flow finishes.
      * @throws IllegalArgumentException
      */
     @PostMapping (value = "withdraw" , produces =  TEXT_PLAIN_VALUE , headers =  "Content-Type=application/x-www-form-urlencoded" )
-    public ResponseEntity<String> withdraw(HttpServletRequest request) throws IllegalArgumentException {
+    public CompletableFuture<ResponseEntity<String>> withdraw(HttpServletRequest request) throws IllegalArgumentException {
+        return post(request, BatchPosting.Posting.Type.WITHDRAW);
+    }
+
+    /**
+     *
+     * @param request - needs fromId, toId and amount parameters in HTTP request.
+     *                  both balances are updated in one atomic transaction.
+     * @return Customized Response, completed when the flow finishes.
+     * @throws IllegalArgumentException
+     */
+    @PostMapping (value = "transfer" , produces =  TEXT_PLAIN_VALUE , headers =  "Content-Type=application/x-www-form-urlencoded" )
+    public CompletableFuture<ResponseEntity<String>> transfer(HttpServletRequest request) throws IllegalArgumentException {
+        UniqueIdentifier fromId = new UniqueIdentifier(null, uuid("fromId", request.getParameter("fromId")));
+        UniqueIdentifier toId = new UniqueIdentifier(null, uuid("toId", request.getParameter("toId")));
+        BigDecimal amount = new BigDecimal(request.getParameter("amount"));
+        //start flow using proxy RPC connection
+        return startFlow("transfer", Arrays.asList(fromId.getId().toString(), toId.getId().toString()), () -> proxy.startFlow(Transfer.TransferInitiator.class, fromId, toId, amount).getReturnValue())
+                .thenApply(result -> ResponseEntity
+                        .status(HttpStatus.CREATED)
+                        .body("Transaction id "+ result.getId() +" committed to ledger.\n "
+                                + "Transferred " + amount + " from " + fromId + " to " + toId))
+                .exceptionally(Controller::errorResponse);
+    }
+
+    private CompletableFuture<ResponseEntity<String>> post(HttpServletRequest request, BatchPosting.Posting.Type type) {
         // Get balanceId and amount value from request
-        UniqueIdentifier balanceId = UUID.fromString(request.getParameter("balanceId"));
-        double amount = Double.parseDouble(request.getParameter("amount"));
+        UniqueIdentifier balanceId = new UniqueIdentifier(null, uuid("balanceId", request.getParameter("balanceId")));
+        BigDecimal amount = new BigDecimal(request.getParameter("amount"));
+        List<String> balanceIds = Collections.singletonList(balanceId.getId().toString());
+        boolean async = Boolean.parseBoolean(request.getParameter("async"));
+
+        if (Boolean.parseBoolean(request.getParameter("combine"))) {
+            if (async) {
+                return CompletableFuture.completedFuture(errorResponse(new IllegalArgumentException("combine and async cannot be used together")));
+            }
+            //hand the posting to the node's combiner, which nets concurrent postings per balance; the combiner
+            //already serialises postings to one balance, so they only count against the global admission limit
+            return startFlow("combined_posting", () -> proxy.startFlow(CombinedPosting.CombinedPostingInitiator.class, balanceId, type, amount).getReturnValue())
+                    .thenApply(txId -> ResponseEntity
+                            .status(HttpStatus.CREATED)
+                            .body("Transaction id "+ txId +" committed to ledger.\n "
+                                    + "BalanceId is " + balanceId))
+                    .exceptionally(Controller::errorResponse);
+        }
+        Supplier<FlowHandle<SignedTransaction>> flow = () -> type == BatchPosting.Posting.Type.DEPOSIT
+                ? proxy.startFlow(Deposit.DepositInitiator.class, balanceId, amount)
+                : proxy.startFlow(Withdraw.WithdrawInitiator.class, balanceId, amount);
+        if (async) {
+            String posted = type.name().toLowerCase() + " " + amount.stripTrailingZeros().toPlainString() + " on " + balanceId.getId();
+            return accept(request, type.name().toLowerCase(), posted, balanceIds, flow);
+        }
+        //start flow using proxy RPC connection
+        return startFlow(type.name().toLowerCase(), balanceIds, () -> flow.get().getReturnValue())
+                .thenApply(result -> {
+                    Balance output = result.getTx().outputsOfType(Balance.class).get(0);
+                    return ResponseEntity
+                            .status(HttpStatus.CREATED)
+                            .body("Transaction id "+ result.getId() +" committed to ledger.\n "
+                                    + "BalanceId is " + output.getLinearId() + "\n"
+                                    + "Balance is " + output.getBalance());
+                })
+                .exceptionally(Controller::errorResponse);
+    }
+
+    /**
+     * Status of a posting accepted in async mode: PENDING, COMMITTED with its tx id, or FAILED with the reason.
+     * Statuses expire config.postings.store.ttlSeconds after their last change.
+     */
+    @GetMapping(value = "/postings/{id}", produces = APPLICATION_JSON_VALUE)
+    public ResponseEntity<PostingStatus> getPosting(@PathVariable String id) {
+        return postingStore.get(id)
+                .map(ResponseEntity::ok)
+                .orElseGet(() -> ResponseEntity.notFound().build());
+    }
+
+    /**
+     * Async mode: answer 202 Accepted as soon as the flow is admitted or queued, with the posting id in the
+     * body and a Location of /postings/{id}, and record the flow's StateMachineRunId and outcome in the
+     * PostingStore as they come in. The id is the client's postingId parameter when given - a retried
+     * request with the same id is answered 202 again without posting twice - or a new UUID.
+     * A request that admission rejects outright still gets its 429. A postingId already used for a
+     * different posting (posted describes the flow's parameters) gets a 409, and while the store is full of
+     * pending postings new ones get a 503 with a Retry-After.
+     */
+    private CompletableFuture<ResponseEntity<String>> accept(HttpServletRequest request, String flow, String posted,
+                                                            Collection<String> balanceIds, Supplier<FlowHandle<SignedTransaction>> start) {
+        String id = request.getParameter("postingId") == null ? UUID.randomUUID().toString() : request.getParameter("postingId");
+        if (!POSTING_ID.matcher(id).matches()) {
+            return CompletableFuture.completedFuture(errorResponse(new IllegalArgumentException("postingId must match " + POSTING_ID)));
+        }
+        switch (postingStore.register(id, posted)) {
+            case DUPLICATE:
+                return CompletableFuture.completedFuture(accepted(id));
+            case CONFLICT:
+                return CompletableFuture.completedFuture(ResponseEntity
+                        .status(HttpStatus.CONFLICT)
+                        .body("Posting " + id + " was already used for a different posting\n"));
+            case FULL:
+                return CompletableFuture.completedFuture(ResponseEntity
+                        .status(HttpStatus.SERVICE_UNAVAILABLE)
+                        .header(HttpHeaders.RETRY_AFTER, String.valueOf(postingStoreRetryAfterSeconds))
+                        .body("Too many async postings are pending, retry later\n"));
+            default:
+                break;
+        }
+        CompletableFuture<SignedTransaction> result = startFlow(flow, balanceIds, () -> {
+            FlowHandle<SignedTransaction> handle = start.get();
+            postingStore.started(id, handle.getId().getUuid());
+            return handle.getReturnValue();
+        });
+        if (result.isCompletedExceptionally()) {
+            postingStore.remove(id);
+            return result.handle((tx, error) -> errorResponse(error));
+        }
+        result.whenComplete((tx, error) -> {
+            if (error == null) postingStore.committed(id, tx);
+            else postingStore.failed(id, error);
+        });
+        return CompletableFuture.completedFuture(accepted(id));
+    }
 
+    private static ResponseEntity<String> accepted(String id) {
+        return ResponseEntity
+                .status(HttpStatus.ACCEPTED)
+                .location(URI.create("/postings/" + id))
+                .body("Posting " + id + " accepted.\n");
+    }
+
+    /**
+     * Many deposits, withdrawals and issuances in one request.
+     *
+     * @param request - a JSON array or newline-delimited JSON of PostingItems, e.g.
+     *                  {"type":"DEPOSIT","balanceId":"...","amount":"10.25"} or {"type":"ISSUE","currency":"USD"}.
+     * @return one PostingResult per item as newline-delimited JSON, in input order. Each item runs as its own
+     *         flow, with up to config.postings.maxInFlight of them in flight, and fails or commits on its own.
+     */
+    @PostMapping (value = "postings/batch" , consumes = {APPLICATION_JSON_VALUE, NDJSON_VALUE}, produces = NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> postBatch(HttpServletRequest request) throws IOException {
+        InputStream in = request.getInputStream();
+        PostingBatch batch = new PostingBatch(postingsMaxInFlight, this::startPosting);
+        StreamingResponseBody body = out -> batch.run(in, out);
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType(NDJSON_VALUE)).body(body);
+    }
+
+    private CompletableFuture<SignedTransaction> startPosting(PostingItem item) {
+        if (item.getType() == null) {
+            return failed(new IllegalArgumentException("type must be one of " + Arrays.toString(PostingItem.Type.values())));
+        }
+        if (item.getType() == PostingItem.Type.ISSUE) {
+            return startFlow("issue", () -> proxy.startFlow(IssueBalance.IssueBalanceInitiator.class,
+                    item.requiredCurrency(), item.getStripes()).getReturnValue());
+        }
+        UniqueIdentifier balanceId;
         try {
-            //start flow using proxy RPC connection
-            SignedTransaction result = proxy.startFlow(Withdraw.WithdrawInitiator.class, balanceId, amount).getReturnValue().get();
+            balanceId = item.balanceIdentifier();
+        } catch (IllegalArgumentException e) {
+            return failed(e);
+        }
+        List<String> balanceIds = Collections.singletonList(balanceId.getId().toString());
+        return item.getType() == PostingItem.Type.DEPOSIT
+                ? startFlow("deposit", balanceIds, () -> proxy.startFlow(Deposit.DepositInitiator.class,
+                        balanceId, item.requiredAmount()).getReturnValue())
+                : startFlow("withdraw", balanceIds, () -> proxy.startFlow(Withdraw.WithdrawInitiator.class,
+                        balanceId, item.requiredAmount()).getReturnValue());
+    }
 
+    /**
+     * Start a flow and bridge its CordaFuture to a CompletableFuture, so the response is completed from
+     * the RPC client's callback instead of blocking a servlet thread. Failures to start the flow
+     * surface through the returned future as well. The time from starting the flow to its result is
+     * recorded as rpc.flow, tagged with the flow name and outcome.
+     *
+     * Every flow passes FlowAdmission first, with the balances it posts to and their stripe counts from
+     * the balance cache; when admission is saturated the future fails with AdmissionRejectedException,
+     * which errorResponse turns into a 429.
+     */
+    private <T> CompletableFuture<T> startFlow(String flow, Supplier<CordaFuture<T>> start) {
+        return startFlow(flow, Collections.emptyList(), start);
+    }
+
+    private <T> CompletableFuture<T> startFlow(String flow, Collection<String> balanceIds, Supplier<CordaFuture<T>> start) {
+        Map<String, Integer> stripesByBalance = new HashMap<>();
+        balanceIds.forEach(balanceId -> stripesByBalance.put(balanceId, balanceCache.stripeCount(balanceId)));
+        return admission.submit(stripesByBalance, () -> {
+            long startNanos = System.nanoTime();
+            try {
+                return start.get().toCompletableFuture().whenComplete((result, error) ->
+                        Timer.builder("rpc.flow").tags("flow", flow, "outcome", error == null ? "success" : "failure")
+                                .register(meterRegistry).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS));
+            } catch (Exception e) {
+                return failed(e);
+            }
+        });
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable error) {
+        CompletableFuture<T> failed = new CompletableFuture<>();
+        failed.completeExceptionally(error);
+        return failed;
+    }
+
+    /**
+     * Malformed input - an id that is not a UUID, a page or size below 1, an amount that is not a number -
+     * is answered 400 by errorResponse rather than 500.
+     */
+    @ExceptionHandler(IllegalArgumentException.class)
+    public ResponseEntity<String> badRequest(IllegalArgumentException error) {
+        return errorResponse(error);
+    }
+
+    static UUID uuid(String name, String value) throws IllegalArgumentException {
+        if (value == null) throw new IllegalArgumentException(name + " is required");
+        try {
+            return UUID.fromString(value);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(name + " is not a UUID: " + value);
+        }
+    }
+
+    private static void requirePaging(int page, int size) throws IllegalArgumentException {
+        if (page < 1) throw new IllegalArgumentException("page must be at least 1");
+        if (size < 1) throw new IllegalArgumentException("size must be at least 1");
+    }
+
+    private static ResponseEntity<String> errorResponse(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof AdmissionRejectedException) {
             return ResponseEntity
-                    .status(HttpStatus.CREATED)
-                    .body("Transaction id "+ result.getId() +" committed to ledger.\n "
-                            + "BalanceId is " + result.getTx().getOutput(0).getLinearId() + "\n"
-                            + "Balance is " + result.getTx().getOutput(0).getBalance());
-        } catch (Exception e) {
-            return ResponseEntity
-                    .status(HttpStatus.BAD_REQUEST)
-                    .body(e.getMessage());
+                    .status(HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(((AdmissionRejectedException) cause).getRetryAfterSeconds()))
+                    .body(cause.getMessage());
         }
+        return ResponseEntity
+                .status(HttpStatus.BAD_REQUEST)
+                .body(cause.getMessage());
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,249 @@
+package com.template.webserver;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Admission control in front of every flow the webserver starts.
+ *
+ * A flow runs only while fewer than limit flows are in flight overall and fewer than
+ * config.admission.perBalance touch each of its balances, per stripe of a striped account. Otherwise it waits in a FIFO queue of at most
+ * config.admission.maxQueue entries for at most config.admission.maxWaitMillis, without holding a thread,
+ * and is started from the admission pool once a slot frees up. It is rejected with an
+ * AdmissionRejectedException (HTTP 429) when the queue is full or the wait runs out.
+ *
+ * The global limit adapts AIMD-style to the latency of the flows it admits, which notarisation dominates:
+ * each flow that completes within config.admission.targetLatencyMillis raises it by 1/limit (one per
+ * round of flows), and a slower one cuts it by config.admission.backoff, at most once per target latency.
+ * The limit stays between config.admission.minLimit and config.admission.maxLimit.
+ */
+@Component
+public class FlowAdmission {
+    private final static Logger logger = LoggerFactory.getLogger(FlowAdmission.class);
+    // weight of the newest flow in the latency average that Retry-After is estimated from
+    private final static double LATENCY_WEIGHT = 0.2;
+
+    @Value("${config.admission.minLimit:4}")
+    private int minLimit;
+    @Value("${config.admission.maxLimit:512}")
+    private int maxLimit;
+    @Value("${config.admission.initialLimit:64}")
+    private int initialLimit;
+    // The number of in-flight flows that may touch one balance.
+    @Value("${config.admission.perBalance:4}")
+    private int perBalance;
+    @Value("${config.admission.maxQueue:1000}")
+    private int maxQueue;
+    @Value("${config.admission.maxWaitMillis:2000}")
+    private long maxWaitMillis;
+    @Value("${config.admission.targetLatencyMillis:2000}")
+    private long targetLatencyMillis;
+    @Value("${config.admission.backoff:0.9}")
+    private double backoff;
+
+    private final MeterRegistry meterRegistry;
+    private final ScheduledExecutorService timeouts = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "flow-admission-timeouts");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // queued flows are started here rather than on the RPC thread that completed the flow before them
+    private final ExecutorService starter = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "flow-admission");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Counter queueFull;
+    private Counter timedOut;
+
+    // guarded by this
+    private double limit;
+    private int inFlight;
+    private final Map<String, Integer> inFlightByBalance = new HashMap<>();
+    private final Deque<Waiter> queue = new ArrayDeque<>();
+    private double latencyMillis;
+    private long lastDecreaseNanos;
+
+    public FlowAdmission(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void start() {
+        limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        latencyMillis = targetLatencyMillis;
+        Gauge.builder("admission.limit", this, FlowAdmission::getLimit)
+                .description("Flows the webserver currently lets run at once").register(meterRegistry);
+        Gauge.builder("admission.in_flight", this, FlowAdmission::getInFlight)
+                .description("Flows started by the webserver and not yet finished").register(meterRegistry);
+        Gauge.builder("admission.queue.depth", this, FlowAdmission::getQueueDepth)
+                .description("Requests waiting for admission").register(meterRegistry);
+        queueFull = Counter.builder("admission.rejected").tag("reason", "queue_full")
+                .description("Requests answered 429 by admission control").register(meterRegistry);
+        timedOut = Counter.builder("admission.rejected").tag("reason", "timeout")
+                .description("Requests answered 429 by admission control").register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void close() {
+        timeouts.shutdownNow();
+        starter.shutdownNow();
+    }
+
+    /**
+     * Start a flow once it is admitted.
+     *
+     * @param balanceIds - the balances the flow posts to, empty for flows that only issue.
+     * @param start - starts the flow; called at most once, on the caller's thread or, after waiting,
+     *                on the admission pool.
+     * @return the flow's result, or a future failed with AdmissionRejectedException.
+     */
+    public <T> CompletableFuture<T> submit(Collection<String> balanceIds, Supplier<CompletableFuture<T>> start) {
+        Map<String, Integer> stripes = new HashMap<>();
+        balanceIds.forEach(balanceId -> stripes.put(balanceId, 1));
+        return submit(stripes, start);
+    }
+
+    /**
+     * Start a flow once it is admitted, letting config.admission.perBalance flows in flight per stripe
+     * of each balance.
+     *
+     * @param stripesByBalance - the balances the flow posts to, with their stripe counts (1 for a plain
+     *                           account).
+     */
+    public <T> CompletableFuture<T> submit(Map<String, Integer> stripesByBalance, Supplier<CompletableFuture<T>> start) {
+        Waiter waiter = new Waiter(stripesByBalance);
+        Collection<String> balanceIds = stripesByBalance.keySet();
+        synchronized (this) {
+            if (fits(stripesByBalance)) {
+                acquire(balanceIds);
+                waiter.permit.complete(null);
+            } else if (queue.size() >= maxQueue) {
+                queueFull.increment();
+                waiter.permit.completeExceptionally(new AdmissionRejectedException(
+                        "Too many requests waiting to start flows", retryAfterSeconds()));
+            } else {
+                queue.add(waiter);
+                waiter.timeout = timeouts.schedule(() -> expire(waiter), maxWaitMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        return waiter.permit.thenCompose(admitted -> run(balanceIds, start));
+    }
+
+    private <T> CompletableFuture<T> run(Collection<String> balanceIds, Supplier<CompletableFuture<T>> start) {
+        long startNanos = System.nanoTime();
+        CompletableFuture<T> result;
+        try {
+            result = start.get();
+        } catch (RuntimeException e) {
+            result = new CompletableFuture<>();
+            result.completeExceptionally(e);
+        }
+        result.whenComplete((done, error) -> release(balanceIds, System.nanoTime() - startNanos));
+        return result;
+    }
+
+    private void release(Collection<String> balanceIds, long latencyNanos) {
+        List<Waiter> admitted = new ArrayList<>();
+        synchronized (this) {
+            inFlight--;
+            for (String balanceId : balanceIds) {
+                inFlightByBalance.computeIfPresent(balanceId, (id, count) -> count == 1 ? null : count - 1);
+            }
+            adapt(latencyNanos);
+            // a waiter held back only by a busy balance does not block the ones behind it
+            for (Iterator<Waiter> waiters = queue.iterator(); waiters.hasNext() && inFlight < (int) limit; ) {
+                Waiter waiter = waiters.next();
+                if (fits(waiter.stripesByBalance)) {
+                    waiters.remove();
+                    acquire(waiter.stripesByBalance.keySet());
+                    admitted.add(waiter);
+                }
+            }
+        }
+        for (Waiter waiter : admitted) {
+            waiter.timeout.cancel(false);
+            starter.execute(() -> waiter.permit.complete(null));
+        }
+    }
+
+    private void expire(Waiter waiter) {
+        long retryAfter;
+        synchronized (this) {
+            if (!queue.remove(waiter)) return;
+            retryAfter = retryAfterSeconds();
+        }
+        timedOut.increment();
+        waiter.permit.completeExceptionally(new AdmissionRejectedException(
+                "Timed out after " + maxWaitMillis + "ms waiting to start a flow", retryAfter));
+    }
+
+    // guarded by this
+    private void adapt(long latencyNanos) {
+        double millis = latencyNanos / 1e6;
+        latencyMillis += LATENCY_WEIGHT * (millis - latencyMillis);
+        if (millis <= targetLatencyMillis) {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+            return;
+        }
+        long now = System.nanoTime();
+        if (now - lastDecreaseNanos >= TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis)) {
+            double previous = limit;
+            limit = Math.max(minLimit, limit * backoff);
+            lastDecreaseNanos = now;
+            logger.debug("Flow latency {}ms over target, admission limit {} -> {}", (long) millis, (int) previous, (int) limit);
+        }
+    }
+
+    // guarded by this
+    private boolean fits(Map<String, Integer> stripesByBalance) {
+        if (inFlight >= (int) limit) return false;
+        for (Map.Entry<String, Integer> balance : stripesByBalance.entrySet()) {
+            if (inFlightByBalance.getOrDefault(balance.getKey(), 0) >= perBalance * balance.getValue()) return false;
+        }
+        return true;
+    }
+
+    // guarded by this
+    private void acquire(Collection<String> balanceIds) {
+        inFlight++;
+        for (String balanceId : balanceIds) {
+            inFlightByBalance.merge(balanceId, 1, Integer::sum);
+        }
+    }
+
+    // guarded by this - roughly how long until the queue ahead of a new request has drained
+    private long retryAfterSeconds() {
+        return Math.max(1, (long) Math.ceil(latencyMillis * (queue.size() / limit + 1) / 1000));
+    }
+
+    public synchronized double getLimit() { return limit; }
+
+    public synchronized int getInFlight() { return inFlight; }
+
+    public synchronized int getQueueDepth() { return queue.size(); }
+
+    private static class Waiter {
+        private final Map<String, Integer> stripesByBalance;
+        private final CompletableFuture<Void> permit = new CompletableFuture<>();
+        private ScheduledFuture<?> timeout;
+
+        Waiter(Map<String, Integer> stripesByBalance) { this.stripesByBalance = stripesByBalance; }
+    }
+}
@@ -0,0 +1,66 @@
+package com.template.webserver;
+
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import com.template.flows.BalanceHistory;
+import com.template.states.Balance;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * One line of GET /balances/{id}/history: a version of a balance, what changed and why.
+ * Amounts are exact, in major units, as in BalanceView; recordedTime is ISO-8601.
+ */
+@JsonPropertyOrder({"linearId", "stripe", "ref", "recordedTime", "command", "delta", "moneyIn", "moneyOut", "balance", "consumed"})
+public class HistoryView {
+    private final String linearId;
+    private final int stripe;
+    private final String ref;
+    private final String recordedTime;
+    private final String command;
+    private final BigDecimal delta;
+    private final BigDecimal moneyIn;
+    private final BigDecimal moneyOut;
+    private final BigDecimal balance;
+    private final boolean consumed;
+
+    HistoryView(BalanceHistory.Entry entry) {
+        Balance state = entry.getBalance();
+        int digits = Balance.fractionDigits(state.getCurrency());
+        this.linearId = state.getLinearId().getId().toString();
+        this.stripe = state.getStripe();
+        this.ref = entry.getRef().getTxhash() + ":" + entry.getRef().getIndex();
+        this.recordedTime = entry.getRecordedTime().toString();
+        this.command = entry.getCommand();
+        this.delta = BigDecimal.valueOf(entry.getDeltaMinor(), digits);
+        this.moneyIn = BigDecimal.valueOf(state.getMoneyInMinor(), digits);
+        this.moneyOut = BigDecimal.valueOf(state.getMoneyOutMinor(), digits);
+        this.balance = state.getBalance();
+        this.consumed = entry.isConsumed();
+    }
+
+    static List<HistoryView> of(List<BalanceHistory.Entry> entries) {
+        return entries.stream().map(HistoryView::new).collect(Collectors.toList());
+    }
+
+    public String getLinearId() { return linearId; }
+
+    public int getStripe() { return stripe; }
+
+    public String getRef() { return ref; }
+
+    public String getRecordedTime() { return recordedTime; }
+
+    public String getCommand() { return command; }
+
+    public BigDecimal getDelta() { return delta; }
+
+    public BigDecimal getMoneyIn() { return moneyIn; }
+
+    public BigDecimal getMoneyOut() { return moneyOut; }
+
+    public BigDecimal getBalance() { return balance; }
+
+    public boolean isConsumed() { return consumed; }
+}
@@ -0,0 +1,37 @@
+package com.template.webserver;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.converter.HttpMessageNotWritableException;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times JSON response serialisation (http.json.write), so /metrics separates the webserver's own
+ * serialisation cost from the RPC round trip and the node's flow stages.
+ */
+@Configuration
+public class MetricsConfiguration {
+    @Bean
+    public MappingJackson2HttpMessageConverter timedJsonConverter(Jackson2ObjectMapperBuilder builder, MeterRegistry meterRegistry) {
+        Timer writeTimer = Timer.builder("http.json.write").description("Time spent serialising and writing JSON responses").register(meterRegistry);
+        return new MappingJackson2HttpMessageConverter(builder.build()) {
+            @Override
+            protected void writeInternal(Object object, Type type, HttpOutputMessage outputMessage) throws IOException, HttpMessageNotWritableException {
+                long start = System.nanoTime();
+                try {
+                    super.writeInternal(object, type, outputMessage);
+                } finally {
+                    writeTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,105 @@
+package com.template.webserver;
+
+import com.template.flows.FlowMetrics;
+import com.template.flows.GetFlowMetrics;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import net.corda.core.messaging.CordaRPCOps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Republishes the node's per-stage flow timings (see FlowMetrics) as Micrometer meters.
+ *
+ * Every config.metrics.pollMillis the GetFlowMetrics flow is run over RPC and the snapshot kept. Each
+ * stage becomes node.flow.stage.{count,mean,p50,p99,max} tagged with flow and stage (times in
+ * seconds), and each failure counter node.flow.failures tagged with flow and cause. Meters appear the
+ * first time the node reports them.
+ */
+@Component
+public class NodeFlowMetrics {
+    private final static Logger logger = LoggerFactory.getLogger(NodeFlowMetrics.class);
+
+    // How often the node's flow metrics are fetched.
+    @Value("${config.metrics.pollMillis:10000}")
+    private long pollMillis;
+
+    private final CordaRPCOps proxy;
+    private final MeterRegistry meterRegistry;
+    private final Set<String> registered = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "node-flow-metrics");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile FlowMetrics.Snapshot latest = new FlowMetrics.Snapshot(Collections.emptyMap(), Collections.emptyMap());
+
+    public NodeFlowMetrics(NodeRPCConnection rpc, MeterRegistry meterRegistry) {
+        this.proxy = rpc.proxy;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void start() {
+        poller.scheduleWithFixedDelay(this::poll, 0, pollMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void poll() {
+        try {
+            latest = proxy.startFlow(GetFlowMetrics.GetFlowMetricsInitiator.class).getReturnValue().get(pollMillis, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            logger.debug("Could not fetch flow metrics from the node", e);
+            return;
+        }
+        latest.getStages().keySet().stream().filter(registered::add).forEach(this::registerStage);
+        latest.getFailures().keySet().stream().filter(registered::add).forEach(this::registerFailure);
+    }
+
+    private void registerStage(String name) {
+        // timers are named flow.stage
+        String flow = name.substring(0, name.indexOf('.'));
+        String stage = name.substring(name.indexOf('.') + 1);
+        FunctionCounter.builder("node.flow.stage.count", this, self -> self.stage(name, FlowMetrics.StageTiming::getCount))
+                .tags("flow", flow, "stage", stage).register(meterRegistry);
+        stageGauge("node.flow.stage.mean", name, flow, stage, FlowMetrics.StageTiming::getMean);
+        stageGauge("node.flow.stage.p50", name, flow, stage, FlowMetrics.StageTiming::getP50);
+        stageGauge("node.flow.stage.p99", name, flow, stage, FlowMetrics.StageTiming::getP99);
+        stageGauge("node.flow.stage.max", name, flow, stage, FlowMetrics.StageTiming::getMax);
+    }
+
+    private void stageGauge(String meter, String name, String flow, String stage, ToDoubleFunction<FlowMetrics.StageTiming> nanos) {
+        Gauge.builder(meter, this, self -> self.stage(name, nanos) / 1e9)
+                .baseUnit("seconds").tags("flow", flow, "stage", stage).register(meterRegistry);
+    }
+
+    private void registerFailure(String name) {
+        // counters are named flow.failures.cause
+        String flow = name.substring(0, name.indexOf('.'));
+        String cause = name.substring(name.lastIndexOf('.') + 1);
+        FunctionCounter.builder("node.flow.failures", this, self -> self.latest.getFailures().getOrDefault(name, 0L))
+                .tags("flow", flow, "cause", cause).register(meterRegistry);
+    }
+
+    private double stage(String name, ToDoubleFunction<FlowMetrics.StageTiming> value) {
+        FlowMetrics.StageTiming timing = latest.getStages().get(name);
+        return timing == null ? 0 : value.applyAsDouble(timing);
+    }
+
+    @PreDestroy
+    public void close() {
+        poller.shutdownNow();
+    }
+}
@@ -1,22 +1,51 @@
 package com.template.webserver;
 
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import net.corda.client.rpc.CordaRPCClient;
 import net.corda.client.rpc.CordaRPCConnection;
+import net.corda.client.rpc.GracefulReconnect;
 import net.corda.core.messaging.CordaRPCOps;
 import net.corda.core.utilities.NetworkHostAndPort;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Wraps an RPC connection to a Corda node.
+ * Wraps a pool of RPC connections to a Corda node.
  *
- * The RPC connection is configured using command line arguments.
+ * The RPC connection is configured using command line arguments. Every call made through
+ * {@link #proxy} is routed to the healthy connection with the fewest calls in flight; a background
+ * health check marks connections down and the reconnecting RPC client brings them back after a node
+ * restart. Pool size, in-flight calls and the time spent waiting for a healthy connection are
+ * published as Micrometer metrics.
+ *
+ * Long-lived feeds are opened through {@link #feedProxy}, which is always the first connection, so
+ * reconnect listeners only run when the connection that carries the feeds comes back.
  */
 @Component
 public class NodeRPCConnection implements AutoCloseable {
+    private final static Logger logger = LoggerFactory.getLogger(NodeRPCConnection.class);
+    private final static int FEED_CONNECTION = 0;
+
     // The host of the node we are connecting to.
     @Value("${config.rpc.host}")
     private String host;
@@ -29,20 +58,182 @@ public class NodeRPCConnection implements AutoCloseable {
     // The password for logging into the RPC client.
     @Value("${config.rpc.port}")
     private int rpcPort;
+    // The number of RPC connections to open.
+    @Value("${config.rpc.pool.size:4}")
+    private int poolSize;
+    // How long a call waits for a healthy connection before failing.
+    @Value("${config.rpc.pool.acquireTimeoutMillis:5000}")
+    private long acquireTimeoutMillis;
+    // How often each connection is pinged.
+    @Value("${config.rpc.pool.healthCheckMillis:5000}")
+    private long healthCheckMillis;
+    // How long a ping may take before its connection is marked down.
+    @Value("${config.rpc.pool.pingTimeoutMillis:2000}")
+    private long pingTimeoutMillis;
 
-    private CordaRPCConnection rpcConnection;
+    private final MeterRegistry meterRegistry;
+    private final List<PooledConnection> connections = new ArrayList<>();
+    private final List<Runnable> reconnectListeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService healthCheck = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "rpc-pool-health");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // runs the pings, at most one per connection at a time
+    private ExecutorService pings;
+    private Timer acquireTimer;
+    private Timer callTimer;
     CordaRPCOps proxy;
+    CordaRPCOps feedProxy;
+
+    public NodeRPCConnection(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
 
     @PostConstruct
     public void initialiseNodeRPCConnection() {
         NetworkHostAndPort rpcAddress = new NetworkHostAndPort(host, rpcPort);
-        CordaRPCClient rpcClient = new CordaRPCClient(rpcAddress);
-        rpcConnection = rpcClient.start(username, password);
-        proxy = rpcConnection.getProxy();
+        for (int i = 0; i < poolSize; i++) {
+            connections.add(new PooledConnection(rpcAddress, i));
+        }
+        feedProxy = connections.get(FEED_CONNECTION).proxy;
+        pings = Executors.newFixedThreadPool(poolSize, runnable -> {
+            Thread thread = new Thread(runnable, "rpc-pool-ping");
+            thread.setDaemon(true);
+            return thread;
+        });
+        acquireTimer = Timer.builder("rpc.pool.acquire").description("Time spent waiting for a healthy RPC connection").register(meterRegistry);
+        callTimer = Timer.builder("rpc.pool.call").description("RPC round-trip time").register(meterRegistry);
+        Gauge.builder("rpc.pool.size", connections, List::size).register(meterRegistry);
+        Gauge.builder("rpc.pool.healthy", connections, pool -> pool.stream().filter(c -> c.healthy).count()).register(meterRegistry);
+        Gauge.builder("rpc.pool.in_flight", connections, pool -> pool.stream().mapToInt(c -> c.inFlight.get()).sum()).register(meterRegistry);
+
+        proxy = (CordaRPCOps) Proxy.newProxyInstance(CordaRPCOps.class.getClassLoader(), new Class<?>[]{CordaRPCOps.class},
+                (unused, method, args) -> {
+                    PooledConnection connection;
+                    try {
+                        connection = acquire();
+                    } catch (InterruptedException e) {
+                        // CordaRPCOps methods do not declare it, so it would escape as UndeclaredThrowableException
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Interrupted while waiting for an RPC connection to " + host + ":" + rpcPort, e);
+                    }
+                    connection.inFlight.incrementAndGet();
+                    long start = System.nanoTime();
+                    try {
+                        return method.invoke(connection.proxy, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    } finally {
+                        callTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                        connection.inFlight.decrementAndGet();
+                    }
+                });
+        healthCheck.scheduleWithFixedDelay(this::checkHealth, healthCheckMillis, healthCheckMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs after the feed connection has reconnected, e.g. to reload state derived from feeds opened
+     * through feedProxy. Other connections reconnecting do not affect those feeds.
+     */
+    public void addReconnectListener(Runnable listener) {
+        reconnectListeners.add(listener);
+    }
+
+    /**
+     * The healthy connection with the fewest calls in flight, waiting up to acquireTimeoutMillis for one.
+     */
+    private PooledConnection acquire() throws InterruptedException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(acquireTimeoutMillis);
+        try {
+            synchronized (connections) {
+                while (true) {
+                    PooledConnection best = null;
+                    for (PooledConnection connection : connections) {
+                        if (connection.healthy && (best == null || connection.inFlight.get() < best.inFlight.get())) {
+                            best = connection;
+                        }
+                    }
+                    if (best != null) return best;
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        throw new IllegalStateException("No healthy RPC connection to " + host + ":" + rpcPort);
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(connections, remaining);
+                }
+            }
+        } finally {
+            acquireTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Ping every connection at once and wait up to pingTimeoutMillis for the answers. The reconnecting
+     * client blocks a call until it has reconnected, so a ping that is still outstanding marks its
+     * connection down and is not repeated until it returns; the health check never waits on it.
+     */
+    private void checkHealth() {
+        for (PooledConnection connection : connections) {
+            if (connection.ping == null || connection.ping.isDone()) {
+                connection.ping = CompletableFuture.runAsync(connection.proxy::currentNodeTime, pings);
+            }
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(pingTimeoutMillis);
+        for (PooledConnection connection : connections) {
+            boolean healthy;
+            try {
+                connection.ping.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                healthy = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException | TimeoutException e) {
+                healthy = false;
+            }
+            if (connection.healthy != healthy) {
+                logger.info("RPC connection {} is {}", connection.index, healthy ? "up" : "down");
+                setHealthy(connection, healthy);
+            }
+        }
+    }
+
+    private void setHealthy(PooledConnection connection, boolean healthy) {
+        synchronized (connections) {
+            connection.healthy = healthy;
+            connections.notifyAll();
+        }
     }
 
     @PreDestroy
     public void close() {
-        rpcConnection.notifyServerAndClose();
+        healthCheck.shutdownNow();
+        pings.shutdownNow();
+        connections.forEach(connection -> connection.rpcConnection.notifyServerAndClose());
+    }
+
+    private class PooledConnection {
+        final int index;
+        final CordaRPCConnection rpcConnection;
+        final CordaRPCOps proxy;
+        final AtomicInteger inFlight = new AtomicInteger();
+        volatile boolean healthy = true;
+        // the latest ping; only the health check thread touches it
+        CompletableFuture<Void> ping;
+
+        PooledConnection(NetworkHostAndPort rpcAddress, int index) {
+            this.index = index;
+            CordaRPCClient rpcClient = new CordaRPCClient(rpcAddress);
+            // the reconnecting client retries in the background and replays observables after a node restart
+            GracefulReconnect reconnect = new GracefulReconnect(
+                    () -> setHealthy(this, false),
+                    () -> {
+                        setHealthy(this, true);
+                        if (index == FEED_CONNECTION) reconnectListeners.forEach(Runnable::run);
+                    },
+                    -1);
+            this.rpcConnection = rpcClient.start(username, password, reconnect);
+            this.proxy = rpcConnection.getProxy();
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,111 @@
+package com.template.webserver;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.RuntimeJsonMappingException;
+import net.corda.core.transactions.SignedTransaction;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+
+/**
+ * Settles the postings of one POST /postings/batch request.
+ *
+ * Items are read one at a time from a JSON array or newline-delimited JSON, and each is started as its
+ * own flow as soon as fewer than maxInFlight of the batch's flows are running. Results are written as
+ * newline-delimited JSON in input order: a result is written once it and every result before it have
+ * completed, so a slow posting holds back the ones after it but never stops them running. An item that
+ * is well-formed JSON but not a valid posting gets a failed result of its own; only a JSON syntax error,
+ * which the stream cannot be read past, ends the batch early.
+ */
+class PostingBatch {
+    private final static ObjectMapper MAPPER = new ObjectMapper();
+    // items are read as trees so an item that does not map to a posting fails alone
+    private final static ObjectReader NODE_READER = MAPPER.readerFor(JsonNode.class);
+    private final static ObjectWriter RESULT_WRITER = new ObjectMapper()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+            .writerFor(PostingResult.class);
+
+    private final int maxInFlight;
+    private final Function<PostingItem, CompletableFuture<SignedTransaction>> start;
+
+    PostingBatch(int maxInFlight, Function<PostingItem, CompletableFuture<SignedTransaction>> start) {
+        if (maxInFlight < 1) throw new IllegalArgumentException("maxInFlight must be greater than 0");
+        this.maxInFlight = maxInFlight;
+        this.start = start;
+    }
+
+    void run(InputStream in, OutputStream out) throws IOException {
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        Deque<CompletableFuture<PostingResult>> pending = new ArrayDeque<>();
+        int index = 0;
+        try (MappingIterator<JsonNode> items = NODE_READER.readValues(in)) {
+            while (items.hasNext()) {
+                JsonNode node = items.next();
+                final int itemIndex = index++;
+                PostingItem item;
+                try {
+                    item = MAPPER.treeToValue(node, PostingItem.class);
+                } catch (JsonProcessingException | IllegalArgumentException e) {
+                    // well-formed JSON that is not a valid posting fails on its own; the rest still run
+                    pending.add(CompletableFuture.completedFuture(PostingResult.failed(itemIndex, e)));
+                    if (writeCompleted(out, pending)) out.flush();
+                    continue;
+                }
+                // with every permit taken, write the oldest result rather than sit on completed ones
+                while (!inFlight.tryAcquire()) {
+                    if (pending.isEmpty()) {
+                        inFlight.acquireUninterruptibly();
+                        break;
+                    }
+                    write(out, pending.poll().join());
+                    out.flush();
+                }
+                CompletableFuture<PostingResult> result;
+                try {
+                    result = start.apply(item)
+                            .thenApply(tx -> PostingResult.committed(itemIndex, tx))
+                            .exceptionally(error -> PostingResult.failed(itemIndex, error));
+                } catch (RuntimeException e) {
+                    result = CompletableFuture.completedFuture(PostingResult.failed(itemIndex, e));
+                }
+                result.whenComplete((done, error) -> inFlight.release());
+                pending.add(result);
+                if (writeCompleted(out, pending)) out.flush();
+            }
+        } catch (RuntimeJsonMappingException e) {
+            // a JSON syntax error - the stream cannot be read past it, so report it at the position it was
+            // found and settle what was already started
+            pending.add(CompletableFuture.completedFuture(PostingResult.failed(index, e)));
+        }
+        while (!pending.isEmpty()) {
+            write(out, pending.poll().join());
+            out.flush();
+        }
+    }
+
+    private static boolean writeCompleted(OutputStream out, Deque<CompletableFuture<PostingResult>> pending) throws IOException {
+        boolean written = false;
+        while (!pending.isEmpty() && pending.peek().isDone()) {
+            write(out, pending.poll().join());
+            written = true;
+        }
+        return written;
+    }
+
+    private static void write(OutputStream out, PostingResult result) throws IOException {
+        RESULT_WRITER.writeValue(out, result);
+        out.write('\n');
+    }
+}
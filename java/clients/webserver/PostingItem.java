@@ -0,0 +1,54 @@
+package com.template.webserver;
+
+import net.corda.core.contracts.UniqueIdentifier;
+
+import java.math.BigDecimal;
+
+/**
+ * One element of a POST /postings/batch body.
+ *      - DEPOSIT and WITHDRAW need balanceId and amount (major units).
+ *      - ISSUE needs currency and optionally stripes.
+ */
+public class PostingItem {
+    public enum Type { DEPOSIT, WITHDRAW, ISSUE }
+
+    private Type type;
+    private String balanceId;
+    private BigDecimal amount;
+    private String currency;
+    private int stripes = 1;
+
+    public Type getType() { return type; }
+
+    public void setType(Type type) { this.type = type; }
+
+    public String getBalanceId() { return balanceId; }
+
+    public void setBalanceId(String balanceId) { this.balanceId = balanceId; }
+
+    public BigDecimal getAmount() { return amount; }
+
+    public void setAmount(BigDecimal amount) { this.amount = amount; }
+
+    public String getCurrency() { return currency; }
+
+    public void setCurrency(String currency) { this.currency = currency; }
+
+    public int getStripes() { return stripes; }
+
+    public void setStripes(int stripes) { this.stripes = stripes; }
+
+    UniqueIdentifier balanceIdentifier() throws IllegalArgumentException {
+        return new UniqueIdentifier(null, Controller.uuid("balanceId", balanceId));
+    }
+
+    BigDecimal requiredAmount() throws IllegalArgumentException {
+        if (amount == null) throw new IllegalArgumentException("amount is required");
+        return amount;
+    }
+
+    String requiredCurrency() throws IllegalArgumentException {
+        if (currency == null) throw new IllegalArgumentException("currency is required");
+        return currency;
+    }
+}
@@ -0,0 +1,58 @@
+package com.template.webserver;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import com.template.states.Balance;
+import net.corda.core.transactions.SignedTransaction;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+
+/**
+ * The outcome of one posting: the committed transaction and the balance it left,
+ * or the reason it failed.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@JsonPropertyOrder({"index", "status", "txId", "balanceId", "balance", "error"})
+public class PostingResult {
+    private final int index;
+    private final String status;
+    private final String txId;
+    private final String balanceId;
+    private final BigDecimal balance;
+    private final String error;
+
+    private PostingResult(int index, String status, String txId, String balanceId, BigDecimal balance, String error) {
+        this.index = index;
+        this.status = status;
+        this.txId = txId;
+        this.balanceId = balanceId;
+        this.balance = balance;
+        this.error = error;
+    }
+
+    static PostingResult committed(int index, SignedTransaction result) {
+        List<Balance> outputs = result.getTx().outputsOfType(Balance.class);
+        Balance output = outputs.get(0);
+        return new PostingResult(index, "committed", result.getId().toString(),
+                output.getAccountId().getId().toString(), output.getBalance(), null);
+    }
+
+    static PostingResult failed(int index, Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        return new PostingResult(index, "failed", null, null, null, String.valueOf(cause.getMessage()));
+    }
+
+    public int getIndex() { return index; }
+
+    public String getStatus() { return status; }
+
+    public String getTxId() { return txId; }
+
+    public String getBalanceId() { return balanceId; }
+
+    public BigDecimal getBalance() { return balance; }
+
+    public String getError() { return error; }
+}
@@ -0,0 +1,87 @@
+package com.template.webserver;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import com.template.states.Balance;
+import net.corda.core.transactions.SignedTransaction;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+import java.util.concurrent.CompletionException;
+
+/**
+ * What GET /postings/{id} reports for a posting accepted in async mode.
+ * Each change produces a new PostingStatus; PostingStore keeps the latest.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@JsonPropertyOrder({"id", "status", "flowId", "txId", "balanceId", "balance", "error"})
+public class PostingStatus {
+    public enum Status { PENDING, COMMITTED, FAILED }
+
+    private final String id;
+    private final Status status;
+    private final String flowId;
+    private final String txId;
+    private final String balanceId;
+    private final BigDecimal balance;
+    private final String error;
+    private final String request;
+    private final long updatedNanos = System.nanoTime();
+
+    private PostingStatus(String id, String request, Status status, String flowId, String txId, String balanceId, BigDecimal balance, String error) {
+        this.id = id;
+        this.request = request;
+        this.status = status;
+        this.flowId = flowId;
+        this.txId = txId;
+        this.balanceId = balanceId;
+        this.balance = balance;
+        this.error = error;
+    }
+
+    static PostingStatus pending(String id, String request) {
+        return new PostingStatus(id, request, Status.PENDING, null, null, null, null, null);
+    }
+
+    PostingStatus started(UUID runId) {
+        return new PostingStatus(id, request, status, runId.toString(), txId, balanceId, balance, error);
+    }
+
+    PostingStatus committed(SignedTransaction result) {
+        Balance output = result.getTx().outputsOfType(Balance.class).get(0);
+        return new PostingStatus(id, request, Status.COMMITTED, flowId, result.getId().toString(),
+                output.getAccountId().getId().toString(), output.getBalance(), null);
+    }
+
+    PostingStatus failed(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        return new PostingStatus(id, request, Status.FAILED, flowId, null, null, null, String.valueOf(cause.getMessage()));
+    }
+
+    public String getId() { return id; }
+
+    public Status getStatus() { return status; }
+
+    /**
+     * The StateMachineRunId of the flow, once admission has started it.
+     */
+    public String getFlowId() { return flowId; }
+
+    public String getTxId() { return txId; }
+
+    public String getBalanceId() { return balanceId; }
+
+    public BigDecimal getBalance() { return balance; }
+
+    public String getError() { return error; }
+
+    /**
+     * What was posted under this id, to tell a retry from a reused id.
+     */
+    @JsonIgnore
+    String getRequest() { return request; }
+
+    @JsonIgnore
+    long getUpdatedNanos() { return updatedNanos; }
+}
@@ -0,0 +1,117 @@
+package com.template.webserver;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import net.corda.core.transactions.SignedTransaction;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+
+/**
+ * Statuses of postings accepted in async mode, for GET /postings/{id}.
+ *
+ * Each entry remembers the request it was registered for, so a postingId reused for a different posting
+ * is refused rather than answered as a retry of the first. Settled entries (COMMITTED or FAILED) are kept
+ * in the order they were last updated; one expires config.postings.store.ttlSeconds after its last update,
+ * and the least recently updated is evicted once config.postings.store.maxEntries is reached. PENDING
+ * entries are never expired or evicted: dropping one would let a retry post twice. When every slot holds a
+ * PENDING entry, new postings are refused until some settle. Updates for an entry that is already gone
+ * are dropped.
+ */
+@Component
+public class PostingStore {
+    public enum Registration {
+        // a new posting; start its flow
+        REGISTERED,
+        // a retry of a tracked posting with the same request; do not post again
+        DUPLICATE,
+        // the id is tracked for a different request
+        CONFLICT,
+        // every slot holds a pending posting
+        FULL
+    }
+
+    @Value("${config.postings.store.maxEntries:100000}")
+    private int maxEntries;
+    @Value("${config.postings.store.ttlSeconds:3600}")
+    private long ttlSeconds;
+
+    private final MeterRegistry meterRegistry;
+
+    // guarded by this
+    private final Map<String, PostingStatus> pending = new HashMap<>();
+    private final LinkedHashMap<String, PostingStatus> settled = new LinkedHashMap<>();
+
+    public PostingStore(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void start() {
+        Gauge.builder("postings.store.size", this, PostingStore::size)
+                .description("Async postings whose status is held for polling").register(meterRegistry);
+        Gauge.builder("postings.store.pending", this, PostingStore::pendingSize)
+                .description("Async postings whose flow has not finished").register(meterRegistry);
+    }
+
+    /**
+     * Start tracking a posting as PENDING. request describes what is posted (flow, balances, amount), and
+     * is compared with the request of a posting already tracked under the same id.
+     */
+    public synchronized Registration register(String id, String request) {
+        expire();
+        PostingStatus tracked = pending.containsKey(id) ? pending.get(id) : settled.get(id);
+        if (tracked != null) return tracked.getRequest().equals(request) ? Registration.DUPLICATE : Registration.CONFLICT;
+        if (pending.size() >= maxEntries) return Registration.FULL;
+        Iterator<String> eldest = settled.keySet().iterator();
+        while (pending.size() + settled.size() >= maxEntries && eldest.hasNext()) {
+            eldest.next();
+            eldest.remove();
+        }
+        pending.put(id, PostingStatus.pending(id, request));
+        return Registration.REGISTERED;
+    }
+
+    public synchronized void started(String id, UUID runId) {
+        PostingStatus status = pending.get(id);
+        if (status != null) pending.put(id, status.started(runId));
+    }
+
+    public void committed(String id, SignedTransaction result) { settle(id, status -> status.committed(result)); }
+
+    public void failed(String id, Throwable error) { settle(id, status -> status.failed(error)); }
+
+    public synchronized void remove(String id) {
+        pending.remove(id);
+        settled.remove(id);
+    }
+
+    public synchronized Optional<PostingStatus> get(String id) {
+        expire();
+        return Optional.ofNullable(pending.containsKey(id) ? pending.get(id) : settled.get(id));
+    }
+
+    public synchronized int size() { return pending.size() + settled.size(); }
+
+    public synchronized int pendingSize() { return pending.size(); }
+
+    private synchronized void settle(String id, UnaryOperator<PostingStatus> change) {
+        PostingStatus status = pending.remove(id);
+        if (status != null) settled.put(id, change.apply(status));
+        expire();
+    }
+
+    // guarded by this - settled entries are in update order, so the expired ones are at the head
+    private void expire() {
+        long oldest = System.nanoTime() - TimeUnit.SECONDS.toNanos(ttlSeconds);
+        Iterator<PostingStatus> entries = settled.values().iterator();
+        while (entries.hasNext()) {
+            if (entries.next().getUpdatedNanos() - oldest >= 0) break;
+            entries.remove();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.template.webserver;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * History pages of closed periods, so a month-end statement is computed once.
+ *
+ * A page whose period ended before it was computed cannot change: later transactions are recorded after
+ * the period, and a version's consumed flag is judged at the period's end. Pages of open periods are never
+ * cached. Entries are evicted least-recently-used beyond config.statements.cacheEntries; 0 turns the cache off.
+ */
+@Component
+public class StatementCache {
+    @Value("${config.statements.cacheEntries:1000}")
+    private int maxEntries;
+
+    // guarded by this
+    private LinkedHashMap<String, Statement> statements;
+
+    @PostConstruct
+    public void start() {
+        statements = new LinkedHashMap<String, Statement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Statement> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public synchronized Optional<Statement> get(String accountId, Instant from, Instant to, int page, int size) {
+        return Optional.ofNullable(statements.get(key(accountId, from, to, page, size)));
+    }
+
+    /**
+     * Keep the page if its period had closed when computedAt, the time the query was started.
+     */
+    public synchronized void put(String accountId, Instant from, Instant to, int page, int size, Instant computedAt, Statement statement) {
+        if (maxEntries > 0 && to.isBefore(computedAt)) {
+            statements.put(key(accountId, from, to, page, size), statement);
+        }
+    }
+
+    private static String key(String accountId, Instant from, Instant to, int page, int size) {
+        return accountId + '/' + from + '/' + to + '/' + page + '/' + size;
+    }
+
+    public static class Statement {
+        private final List<HistoryView> entries;
+        private final long totalStatesAvailable;
+
+        public Statement(List<HistoryView> entries, long totalStatesAvailable) {
+            this.entries = entries;
+            this.totalStatesAvailable = totalStatesAvailable;
+        }
+
+        public List<HistoryView> getEntries() { return entries; }
+
+        public long getTotalStatesAvailable() { return totalStatesAvailable; }
+    }
+}
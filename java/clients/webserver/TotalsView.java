@@ -0,0 +1,52 @@
+package com.template.webserver;
+
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import com.template.flows.CurrencyTotals;
+import com.template.states.Balance;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * One currency's line of GET /totals; amounts are exact, in major units, as in BalanceView. They are null,
+ * and available false, when the currency's totals overflowed on the node.
+ */
+@JsonPropertyOrder({"currency", "available", "moneyIn", "moneyOut", "balance", "states"})
+public class TotalsView {
+    private final String currency;
+    private final BigDecimal moneyIn;
+    private final BigDecimal moneyOut;
+    private final BigDecimal balance;
+    private final long states;
+    private final boolean available;
+
+    TotalsView(CurrencyTotals.Totals totals) {
+        int digits = Balance.fractionDigits(totals.getCurrency());
+        this.currency = totals.getCurrency();
+        this.available = totals.isAvailable();
+        this.moneyIn = available ? BigDecimal.valueOf(totals.getMoneyInMinor(), digits) : null;
+        this.moneyOut = available ? BigDecimal.valueOf(totals.getMoneyOutMinor(), digits) : null;
+        this.balance = available ? BigDecimal.valueOf(totals.getBalanceMinor(), digits) : null;
+        this.states = totals.getStates();
+    }
+
+    static List<TotalsView> of(List<CurrencyTotals.Totals> totals) {
+        return totals.stream().map(TotalsView::new).collect(Collectors.toList());
+    }
+
+    public String getCurrency() { return currency; }
+
+    public boolean isAvailable() { return available; }
+
+    public BigDecimal getMoneyIn() { return moneyIn; }
+
+    public BigDecimal getMoneyOut() { return moneyOut; }
+
+    public BigDecimal getBalance() { return balance; }
+
+    /**
+     * Unconsumed Balance states in the currency; a striped account counts once per stripe.
+     */
+    public long getStates() { return states; }
+}
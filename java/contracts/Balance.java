@@ -1,48 +1,169 @@
 package com.template.states;
-import com.templates.contracts.BalanceContract;
+import com.google.common.collect.ImmutableList;
+import com.template.contracts.BalanceContract;
+import com.template.schemas.BalanceSchemaV1;
+import com.template.schemas.BalanceSchemaV2;
 import net.corda.core.contracts.BelongsToContract;
 import net.corda.core.contracts.LinearState;
+import net.corda.core.contracts.SchedulableState;
+import net.corda.core.contracts.ScheduledActivity;
+import net.corda.core.contracts.StateRef;
 import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.flows.FlowLogicRefFactory;
 import net.corda.core.identity.AbstractParty;
 import net.corda.core.identity.Party;
+import net.corda.core.schemas.MappedSchema;
+import net.corda.core.schemas.PersistentState;
+import net.corda.core.schemas.QueryableState;
 import net.corda.core.serialization.ConstructorForDeserialization;
+import net.corda.core.serialization.DeprecatedConstructorForDeserialization;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.math.BigDecimal;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Currency;
 import java.util.List;
+import java.util.UUID;
 @BelongsToContract(BalanceContract.class)
-public class Balance implements LinearState {
+public class Balance implements LinearState, QueryableState, SchedulableState {
+    // every this many links the node schedules CompactBalance, which compacts once the configured length is reached
+    public static final int COMPACTION_CHECK_INTERVAL = 100;
+    private static final String COMPACTION_FLOW = "com.template.flows.CompactBalance$CompactBalanceInitiator";
+
     /**
      * Private variables:
-     *      moneyIn, moneyOut, balance - doubles representing account balance.
-     *      currency - String representing currency
+     *      moneyInMinor, moneyOutMinor - exact totals in the currency's minor unit (cents for USD, yen for JPY).
+     *                 the balance is always moneyIn - moneyOut and is not stored.
+     *      currency - ISO 4217 code, interned so every state of a currency shares one String.
      *      issuer - always this node.
      *      linearId - reperesents the user/owner of this balance.
      *                 linear id stays with the state as it changes over time.
+     *      stripe, stripeCount - a striped account is split into stripeCount sub-states so several
+     *                 postings can be in flight at once. Every stripe has its own linearId whose
+     *                 externalId holds the logical account id. Plain balances have stripeCount 1.
+     *      chainLength - transactions since this balance was issued or last re-issued by CompactBalance.
      *      participants - required of all corda states. Will only include issuer.
      */
-    private double moneyIn, moneyOut, balance;
+    private long moneyInMinor, moneyOutMinor;
     private String currency;
     private Party issuer;
     //implement LinearState
-    private UniqueIdentifier linearID;
+    private UniqueIdentifier linearId;
+    private int stripe, stripeCount;
+    private int chainLength;
 
-    private List<AbstractParty> participants;
+    private List<AbstractParty> participants = new ArrayList<>();
     /**
-     * Constructor - balance and particpants are based off other variables.
+     * Constructor - participants are based off other variables.
      * linearId, currency and issuer are one time
      * moneyIn and moneyOut will be created in flows.
      */
-    public Balance(double moneyIn, double moneyOut, String currency,
-                   Party issuer, UniqueIdentifier linearID) {
-        this.moneyIn = moneyIn;
-        this.moneyOut = moneyOut;
-        this.currency = currency;
+    public Balance(long moneyInMinor, long moneyOutMinor, String currency,
+                   Party issuer, UniqueIdentifier linearId) {
+        this(moneyInMinor, moneyOutMinor, currency, issuer, linearId, 0, 1, 0);
+    }
+
+    @ConstructorForDeserialization
+    public Balance(long moneyInMinor, long moneyOutMinor, String currency,
+                   Party issuer, UniqueIdentifier linearId, int stripe, int stripeCount, int chainLength) {
+        this.moneyInMinor = moneyInMinor;
+        this.moneyOutMinor = moneyOutMinor;
+        this.currency = currency.intern();
         this.issuer = issuer;
-        this.linearID = linearID;
+        this.linearId = linearId;
+        this.stripe = stripe;
+        this.stripeCount = stripeCount;
+        this.chainLength = chainLength;
 
         //will never need to edit these
         this.participants.add(issuer);
-        this.balance = moneyIn - moneyOut;
+    }
+
+    /**
+     * Reads states written by the original Balance (double moneyIn/moneyOut, no stripes, no chainLength).
+     * The parameter keeps that version's linearID spelling so its property still lines up.
+     */
+    @DeprecatedConstructorForDeserialization(version = 1)
+    public Balance(double moneyIn, double moneyOut, String currency,
+                   Party issuer, UniqueIdentifier linearID) {
+        this(moneyIn, moneyOut, currency, issuer, linearID, 0, 1, 0);
+    }
+
+    /**
+     * Reads states written before totals were fixed-point (double moneyIn/moneyOut, no chainLength).
+     * The doubles are rounded to the nearest minor unit once, in the version 3 constructor.
+     */
+    @DeprecatedConstructorForDeserialization(version = 2)
+    public Balance(double moneyIn, double moneyOut, String currency,
+                   Party issuer, UniqueIdentifier linearId, int stripe, int stripeCount) {
+        this(moneyIn, moneyOut, currency, issuer, linearId, stripe, stripeCount, 0);
+    }
+
+    /**
+     * Reads states written before totals were fixed-point (double moneyIn/moneyOut).
+     */
+    @DeprecatedConstructorForDeserialization(version = 3)
+    public Balance(double moneyIn, double moneyOut, String currency,
+                   Party issuer, UniqueIdentifier linearId, int stripe, int stripeCount, int chainLength) {
+        this(Math.round(moneyIn * Math.pow(10, fractionDigits(currency))), Math.round(moneyOut * Math.pow(10, fractionDigits(currency))),
+                currency, issuer, linearId, stripe, stripeCount, chainLength);
+    }
+
+    /**
+     * Copy of this balance with new totals - every other variable stays the same, the chain grows by one.
+     */
+    public Balance withTotals(long newMoneyInMinor, long newMoneyOutMinor) {
+        return new Balance(newMoneyInMinor, newMoneyOutMinor, currency, issuer, linearId, stripe, stripeCount, chainLength + 1);
+    }
+
+    /**
+     * Copy of this balance as a fresh state with no backchain, for CompactBalance to re-issue.
+     */
+    public Balance reissued() {
+        return new Balance(moneyInMinor, moneyOutMinor, currency, issuer, linearId, stripe, stripeCount, 0);
+    }
+
+    /**
+     * Periodically ask the node to compact the chain; CompactBalance decides whether it is long enough.
+     */
+    @Nullable
+    @Override
+    public ScheduledActivity nextScheduledActivity(@NotNull StateRef thisStateRef, @NotNull FlowLogicRefFactory flowLogicRefFactory) {
+        if (chainLength == 0 || chainLength % COMPACTION_CHECK_INTERVAL != 0) return null;
+        return new ScheduledActivity(flowLogicRefFactory.create(COMPACTION_FLOW, thisStateRef), Instant.now());
+    }
+
+    /**
+     * An amount of this balance's currency in minor units.
+     *
+     * @throws IllegalArgumentException if the amount has more decimal places than the currency allows,
+     *                                  or is too large for a long number of minor units.
+     */
+    public long toMinorUnits(BigDecimal amount) { return toMinorUnits(amount, currency); }
+
+    public static long toMinorUnits(BigDecimal amount, String currency) {
+        BigDecimal minor = amount.movePointRight(fractionDigits(currency));
+        if (minor.signum() != 0 && minor.stripTrailingZeros().scale() > 0) {
+            throw new IllegalArgumentException(amount + " is not a whole number of " + currency + " minor units");
+        }
+        try {
+            return minor.longValueExact();
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException(amount + " " + currency + " is too large to post");
+        }
+    }
+
+    /**
+     * Decimal places of the currency's minor unit; 2 for codes that are not ISO 4217 (only old states can have those).
+     */
+    public static int fractionDigits(String currency) {
+        try {
+            return Math.max(0, Currency.getInstance(currency).getDefaultFractionDigits());
+        } catch (IllegalArgumentException e) {
+            return 2;
+        }
     }
 
     @NotNull
@@ -51,19 +172,56 @@ public class Balance implements LinearState {
 
     @NotNull
     @Override
-    public UniqueIdentifier getLinearId() { return linearID; }
+    public UniqueIdentifier getLinearId() { return linearId; }
+
+    /**
+     * The logical account this state belongs to: the linearId itself, or the shared id of a striped account.
+     */
+    public UniqueIdentifier getAccountId() {
+        return isStriped() ? new UniqueIdentifier(null, UUID.fromString(linearId.getExternalId())) : linearId;
+    }
+
+    public boolean isStriped() { return stripeCount > 1; }
+
+    public long getMoneyInMinor() { return moneyInMinor; }
 
-    public double getMoneyIn() { return moneyIn; }
+    public long getMoneyOutMinor() { return moneyOutMinor; }
 
-    public double getMoneyOut() { return moneyOut; }
+    public long getBalanceMinor() { return moneyInMinor - moneyOutMinor; }
 
-    public double getBalance() { return balance; }
+    /**
+     * The balance in major units, exact, for display.
+     */
+    public BigDecimal getBalance() { return BigDecimal.valueOf(getBalanceMinor(), fractionDigits(currency)); }
 
     public String getCurrency() { return currency; }
 
     public Party getIssuer() { return issuer; }
 
-}
+    public int getStripe() { return stripe; }
 
+    public int getStripeCount() { return stripeCount; }
 
+    public int getChainLength() { return chainLength; }
 
+    //implement QueryableState - the vault also stores every balance as a row in balance_states_v2
+    @NotNull
+    @Override
+    public PersistentState generateMappedObject(@NotNull MappedSchema schema) {
+        if (schema instanceof BalanceSchemaV2) {
+            return new BalanceSchemaV2.PersistentBalance(linearId.getId(), getAccountId().getId(), currency,
+                    getBalanceMinor(), stripe);
+        }
+        if (schema instanceof BalanceSchemaV1) {
+            return new BalanceSchemaV1.PersistentBalance(linearId.getId(), getAccountId().getId(), currency,
+                    getBalance().doubleValue(), BigDecimal.valueOf(moneyInMinor, fractionDigits(currency)).doubleValue(),
+                    BigDecimal.valueOf(moneyOutMinor, fractionDigits(currency)).doubleValue(), stripe);
+        }
+        throw new IllegalArgumentException("Unrecognised schema " + schema);
+    }
+
+    @NotNull
+    @Override
+    public Iterable<MappedSchema> supportedSchemas() { return ImmutableList.of(new BalanceSchemaV2()); }
+
+}
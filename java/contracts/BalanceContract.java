@@ -1,11 +1,25 @@
 package com.template.contracts;
 
 import com.template.states.Balance;
+import net.corda.core.contracts.Command;
 import net.corda.core.contracts.CommandData;
 import net.corda.core.contracts.Contract;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.serialization.ConstructorForDeserialization;
+import net.corda.core.serialization.DeprecatedConstructorForDeserialization;
 import net.corda.core.transactions.LedgerTransaction;
 import org.jetbrains.annotations.NotNull;
 
+import java.security.PublicKey;
+import java.util.Currency;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
 import static net.corda.core.contracts.ContractsDSL.requireThat;
 
 // ************
@@ -18,80 +32,297 @@ public class BalanceContract implements Contract {
      * All contract instances implement the verify function
      * veryify is automatically called on a transaction when it is executed.
      */
-    //note: all of the .get(0) functions are due to our tx only having one input/output.
-    //we can add functionality for more inputs/outputs per tx.
+    //note: inputs and outputs are grouped by linearId, so a single transaction can
+    //      move any number of balances (see BatchPosting). Each group is checked on its own.
 
     @Override
     public void verify(@NotNull LedgerTransaction tx) throws IllegalArgumentException {
-        //Extract the command type from the transaction
-        final CommandData commandType = tx.getCommands().get(0).getValue();
+        //Extract the command types from the transaction
+        final List<Command<Commands>> commands = tx.commandsOfType(Commands.class);
+        final Set<Class<?>> commandTypes = commands.stream()
+                .map(command -> command.getValue().getClass())
+                .collect(Collectors.toSet());
+        if (commandTypes.isEmpty()) {
+            //Unrecognized Command type
+            throw new IllegalArgumentException("Incorrect type of Balance Commands");
+        }
         /**
-         * An Issue command should not use any input states, and should only create one output state (basic)
-         * An issued balance must  be 0, currency must be specified (balance specific)
+         * Group states - every balance in the transaction is identified by its linearId.
+         *              - one group holds the input and output versions of one balance.
          */
-        if (commandType instanceof BalanceContract.Commands.Issue) {
-            Balance output = tx.outputsOfType(Balance.class).get(0);
+        final List<LedgerTransaction.InOutGroup<Balance, UniqueIdentifier>> groups =
+                tx.groupStates(Balance.class, Balance::getLinearId);
 
+        /**
+         * An Issue command should not use any input states (basic)
+         * An issued balance must  be 0, currency must be specified (balance specific)
+         * A plain account is issued as exactly one output; a striped account as all of its stripes at once.
+         * One transaction may issue many accounts (see BulkIssueBalance); each account is checked on its own.
+         */
+        if (commandTypes.contains(Commands.Issue.class)) {
+            final List<Balance> outputs = tx.outputsOfType(Balance.class);
             requireThat(require -> {
                 //basic requirements
+                require.using("Issue cannot be combined with other balance commands.", commandTypes.size() == 1);
                 require.using("No inputs should be consumed when issuing a new balance.", tx.getInputStates().size() == 0);
-                require.using("Exactly one output should be created when issuing a new balance.", tx.getOutputStates().size() == 1);
+                require.using("At least one output should be created when issuing a new balance.", outputs.size() >= 1);
+                require.using("Only balance states can be created.", tx.getOutputStates().size() == outputs.size());
+                require.using("Each balance can only be issued once.", groups.size() == outputs.size());
                 //balance specific
-                require.using("Balance must be 0", output.getBalance() == 0);
-                require.using("Currency must be specified", !output.getCurrency().equals(""));
+                for (Balance output : outputs) {
+                    require.using("Balance must be 0", output.getMoneyInMinor() == 0 && output.getMoneyOutMinor() == 0);
+                    require.using("A new balance starts a new chain", output.getChainLength() == 0);
+                    require.using("Currency must be an ISO 4217 code", isCurrencyCode(output.getCurrency()));
+                    require.using("stripeCount must be at least 1", output.getStripeCount() >= 1);
+                    require.using("A striped account must carry its account id", !output.isStriped() || isUuid(output.getLinearId().getExternalId()));
+                }
+                //stripe specific - every account id is well-formed by now, so the outputs can be grouped by it
+                final Map<UniqueIdentifier, List<Balance>> accounts = outputs.stream()
+                        .collect(Collectors.groupingBy(Balance::getAccountId));
+                for (List<Balance> stripes : accounts.values()) {
+                    require.using("Every stripe of the account must be issued together",
+                            stripes.stream().allMatch(stripe -> stripe.getStripeCount() == stripes.size()));
+                    require.using("Stripes must share one currency",
+                            stripes.stream().map(Balance::getCurrency).distinct().count() == 1);
+                    require.using("Stripe indexes must be distinct and below stripeCount",
+                            stripes.stream().mapToInt(Balance::getStripe).filter(i -> i >= 0 && i < stripes.size()).distinct().count() == stripes.size());
+                }
                 return null;
             });
+            return;
         }
 
         /**
-         * Deposit/Withdraw - only one field should be edited. all other variables should
-         *                    be the same before and after transaction
+         * Compact - ends the chains of the consumed balances; nothing is produced. Only the issuer can compact.
+         * Reissue - brings them back as fresh states with no inputs, so no backchain.
+         *
+         * Trust assumption: a re-issue has no inputs, so this contract cannot see the chain it replaces. It does
+         * not check that the totals are the ones the Compact transaction consumed, that the named Compact
+         * transaction exists, or that the linearId is not still live. It only checks that the states are
+         * well-formed fresh balances, signed by the issuer and by a dedicated compaction key that is not the
+         * issuer's identity key, which the issuer's node uses for nothing but CompactBalance. A re-issued balance
+         * is therefore exactly as trustworthy as that key: counterparties accept it only when the key is the
+         * one the issuer publishes for compaction.
          */
-        else if (commandType instanceof BalanceContract.Commands.Deposit) {
-            Balance input = tx.inputsOfType(Balance.class).get(0);
-            Balance output = tx.outputsOfType(Balance.class).get(0);
+        if (commandTypes.contains(Commands.Compact.class) || commandTypes.contains(Commands.Reissue.class)) {
+            final Command<Commands> command = commands.get(0);
+            final List<Balance> inputs = tx.inputsOfType(Balance.class);
+            final List<Balance> outputs = tx.outputsOfType(Balance.class);
+            requireThat(require -> {
+                require.using("Compact and Reissue cannot be combined with other balance commands.", commands.size() == 1);
+                if (command.getValue() instanceof Commands.Compact) {
+                    require.using("At least one balance should be compacted.", !inputs.isEmpty());
+                    require.using("Only balance states can be compacted.", tx.getInputStates().size() == inputs.size());
+                    require.using("Compaction cannot create states.", tx.getOutputStates().isEmpty());
+                    require.using("Only the issuer can compact a balance",
+                            inputs.stream().allMatch(input -> command.getSigners().contains(input.getIssuer().getOwningKey())));
+                } else {
+                    final Commands.Reissue reissue = (Commands.Reissue) command.getValue();
+                    require.using("No inputs should be consumed when re-issuing a balance.", tx.getInputStates().isEmpty());
+                    require.using("At least one balance should be re-issued.", !outputs.isEmpty());
+                    require.using("Only balance states can be re-issued.", tx.getOutputStates().size() == outputs.size());
+                    require.using("Each balance can only be re-issued once.", groups.size() == outputs.size());
+                    require.using("A re-issue must name the Compact transaction it follows", reissue.getCompacted() != null);
+                    require.using("A re-issued balance starts a new chain", outputs.stream().allMatch(output -> output.getChainLength() == 0));
+                    require.using("Only the issuer can re-issue a balance",
+                            outputs.stream().allMatch(output -> command.getSigners().contains(output.getIssuer().getOwningKey())));
+                    require.using("A re-issue must be signed by the compaction key",
+                            reissue.getReissuer() != null && command.getSigners().contains(reissue.getReissuer()));
+                    require.using("The compaction key cannot be the issuer's identity key",
+                            outputs.stream().noneMatch(output -> output.getIssuer().getOwningKey().equals(reissue.getReissuer())));
+                    for (Balance output : outputs) {
+                        require.using("Re-issued totals cannot be negative", output.getMoneyInMinor() >= 0 && output.getMoneyOutMinor() >= 0);
+                        require.using("Currency must be an ISO 4217 code", isCurrencyCode(output.getCurrency()));
+                        require.using("Stripe index must be below stripeCount",
+                                output.getStripe() >= 0 && output.getStripe() < output.getStripeCount());
+                    }
+                }
+                return null;
+            });
+            return;
+        }
 
+        /**
+         * Consolidate - moves funds between stripes of the same account so one stripe can cover a withdrawal.
+         *             - per account, the sums of moneyIn and moneyOut are unchanged and no stripe goes negative.
+         */
+        if (commandTypes.contains(Commands.Consolidate.class)) {
             requireThat(require -> {
-                //basic requirements
-                require.using("Exactly one input should be consumed when issuing a new balance.", tx.getInputStates().size() == 1);
-                require.using("Exactly one output should be created when issuing a new balance.", tx.getOutputStates().size() == 1);
-                //operation specific
-                require.using("only moneyIn changes", input.getMoneyOut() = output.getMoneyOut() &&
-                        input.getCurrency() = output.getCurrency() &&
-                        input.getIssuer() = output.getIssuer() &&
-                        input.getLinearId() = output.getLinearId());
+                require.using("Consolidate cannot be combined with other balance commands.", commandTypes.size() == 1);
+                require.using("Only balance states can be consumed or created.",
+                        tx.getInputStates().size() == groups.size() && tx.getOutputStates().size() == groups.size());
+                for (LedgerTransaction.InOutGroup<Balance, UniqueIdentifier> group : groups) {
+                    require.using("Exactly one input and output per stripe", group.getInputs().size() == 1 && group.getOutputs().size() == 1);
+                    Balance input = group.getInputs().get(0);
+                    Balance output = group.getOutputs().get(0);
+                    require.using("Only stripes of a striped account can be consolidated", input.isStriped());
+                    require.using("currency, issuer, linearId and stripe cannot change",
+                            input.getCurrency().equals(output.getCurrency()) &&
+                            input.getIssuer().equals(output.getIssuer()) &&
+                            input.getStripe() == output.getStripe() &&
+                            input.getStripeCount() == output.getStripeCount());
+                    require.using("moneyOut cannot change when consolidating", input.getMoneyOutMinor() == output.getMoneyOutMinor());
+                    require.using("chainLength must grow by one", output.getChainLength() == input.getChainLength() + 1);
+                    require.using("A stripe cannot go negative when consolidating", output.getBalanceMinor() >= 0);
+                }
+                Map<UniqueIdentifier, Long> moneyInDelta = new HashMap<>();
+                for (LedgerTransaction.InOutGroup<Balance, UniqueIdentifier> group : groups) {
+                    Balance input = group.getInputs().get(0);
+                    // an overflowing sum throws and rejects the transaction rather than wrap round to 0
+                    moneyInDelta.merge(input.getAccountId(),
+                            Math.subtractExact(group.getOutputs().get(0).getMoneyInMinor(), input.getMoneyInMinor()), Math::addExact);
+                }
+                require.using("Consolidation must conserve each account's totals",
+                        moneyInDelta.values().stream().allMatch(delta -> delta == 0));
                 return null;
             });
+            return;
         }
-        else if (commandType instanceof  BalanceContract.Commands.Withdraw) {
-            Balance input = tx.inputsOfType(Balance.class).get(0);
-            Balance output = tx.outputsOfType(Balance.class).get(0);
 
+        /**
+         * Transfer - moves an amount from one account to another in a single transaction.
+         *          - exactly two balances in the same currency: the source's moneyOut and the
+         *            destination's moneyIn grow by the same amount, nothing else changes.
+         *          - the source cannot end up below 0.
+         */
+        if (commandTypes.contains(Commands.Transfer.class)) {
+            requireThat(require -> {
+                require.using("Transfer cannot be combined with other balance commands.", commandTypes.size() == 1);
+                require.using("A transfer moves funds between exactly two balances.", groups.size() == 2);
+                require.using("Only balance states can be consumed or created.",
+                        tx.getInputStates().size() == 2 && tx.getOutputStates().size() == 2);
+                for (LedgerTransaction.InOutGroup<Balance, UniqueIdentifier> group : groups) {
+                    require.using("Exactly one input and output per balance", group.getInputs().size() == 1 && group.getOutputs().size() == 1);
+                    Balance input = group.getInputs().get(0);
+                    Balance output = group.getOutputs().get(0);
+                    require.using("currency, issuer, linearId and stripe cannot change",
+                            input.getCurrency().equals(output.getCurrency()) &&
+                            input.getIssuer().equals(output.getIssuer()) &&
+                            input.getStripe() == output.getStripe() &&
+                            input.getStripeCount() == output.getStripeCount());
+                    require.using("chainLength must grow by one", output.getChainLength() == input.getChainLength() + 1);
+                }
+                Balance first = groups.get(0).getInputs().get(0);
+                Balance second = groups.get(1).getInputs().get(0);
+                require.using("Both balances must be in the same currency", first.getCurrency().equals(second.getCurrency()));
+                require.using("A transfer must be between two different accounts", !first.getAccountId().equals(second.getAccountId()));
+                long moneyIn = 0, moneyOut = 0;
+                for (LedgerTransaction.InOutGroup<Balance, UniqueIdentifier> group : groups) {
+                    Balance input = group.getInputs().get(0);
+                    Balance output = group.getOutputs().get(0);
+                    // compare the totals themselves; a difference of two longs can wrap round
+                    boolean source = output.getMoneyInMinor() == input.getMoneyInMinor() && output.getMoneyOutMinor() > input.getMoneyOutMinor();
+                    boolean destination = output.getMoneyInMinor() > input.getMoneyInMinor() && output.getMoneyOutMinor() == input.getMoneyOutMinor();
+                    require.using("Each balance is either the source or the destination", source || destination);
+                    require.using("A transfer cannot overdraw its source", !source || output.getBalanceMinor() >= 0);
+                    // the totals only grow, so each difference is in range
+                    moneyIn += output.getMoneyInMinor() - input.getMoneyInMinor();
+                    moneyOut += output.getMoneyOutMinor() - input.getMoneyOutMinor();
+                }
+                require.using("A transfer needs one source and one destination", moneyIn > 0 && moneyOut > 0);
+                require.using("A transfer must conserve value", moneyIn == moneyOut);
+                return null;
+            });
+            return;
+        }
+
+        /**
+         * Deposit/Withdraw - every group consumes exactly one balance and produces exactly one balance.
+         *                  - moneyIn may only grow under a Deposit command, moneyOut only under a Withdraw command.
+         *                  - a balance that is withdrawn from cannot end up below 0.
+         *                  - all other variables should be the same before and after transaction
+         */
+        final boolean depositAllowed = commandTypes.contains(Commands.Deposit.class);
+        final boolean withdrawAllowed = commandTypes.contains(Commands.Withdraw.class);
+        requireThat(require -> {
+            require.using("Only Deposit and Withdraw commands can update a balance.",
+                    commandTypes.stream().allMatch(type -> type == Commands.Deposit.class || type == Commands.Withdraw.class));
+            require.using("At least one balance should be updated.", !groups.isEmpty());
+            require.using("Only balance states can be consumed or created.",
+                    tx.getInputStates().size() == groups.size() && tx.getOutputStates().size() == groups.size());
+            return null;
+        });
+        for (LedgerTransaction.InOutGroup<Balance, UniqueIdentifier> group : groups) {
             requireThat(require -> {
                 //basic requirements
-                require.using("Exactly one input should be consumed when issuing a new balance.", tx.getInputStates().size() == 1);
-                require.using("Exactly one output should be created when issuing a new balance.", tx.getOutputStates().size() == 1);
+                require.using("Exactly one input should be consumed for balance " + group.getGroupingKey(), group.getInputs().size() == 1);
+                require.using("Exactly one output should be created for balance " + group.getGroupingKey(), group.getOutputs().size() == 1);
+                Balance input = group.getInputs().get(0);
+                Balance output = group.getOutputs().get(0);
+                // compare the totals themselves; a difference of two longs can wrap round
+                boolean deposited = output.getMoneyInMinor() > input.getMoneyInMinor();
+                boolean withdrawn = output.getMoneyOutMinor() > input.getMoneyOutMinor();
                 //operation specific
-                require.using("only moneyOut changes", input.getMoneyIn() = output.getMoneyIn() &&
-                        input.getCurrency() = output.getCurrency() &&
-                        input.getIssuer() = output.getIssuer() &&
-                        input.getLinearId() = output.getLinearId());
+                require.using("currency, issuer, linearId and stripe cannot change",
+                        input.getCurrency().equals(output.getCurrency()) &&
+                        input.getIssuer().equals(output.getIssuer()) &&
+                        input.getLinearId().equals(output.getLinearId()) &&
+                        input.getStripe() == output.getStripe() &&
+                        input.getStripeCount() == output.getStripeCount());
+                require.using("chainLength must grow by one", output.getChainLength() == input.getChainLength() + 1);
+                require.using("moneyIn and moneyOut cannot decrease",
+                        output.getMoneyInMinor() >= input.getMoneyInMinor() && output.getMoneyOutMinor() >= input.getMoneyOutMinor());
+                require.using("balance " + group.getGroupingKey() + " must change", deposited || withdrawn);
+                require.using("moneyIn only changes with a Deposit command", !deposited || depositAllowed);
+                require.using("moneyOut only changes with a Withdraw command", !withdrawn || withdrawAllowed);
+                require.using("A withdrawal cannot overdraw balance " + group.getGroupingKey(), !withdrawn || output.getBalanceMinor() >= 0);
                 return null;
             });
         }
-        else {
-            //Unrecognized Command type
-            throw new IllegalArgumentException("Incorrect type of Balance Commands");
+    }
+    private static boolean isUuid(String id) {
+        if (id == null) return false;
+        try {
+            UUID.fromString(id);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
         }
     }
+
+    private static boolean isCurrencyCode(String currency) {
+        try {
+            return Currency.getInstance(currency).getCurrencyCode().equals(currency);
+        } catch (IllegalArgumentException | NullPointerException e) {
+            return false;
+        }
+    }
+
     /**
      * Commands indicate the transaction’s intent:
      * what type of actions performed by the state the contract can verify.
-     * Our state can perform three actions: IssueBalance, UpdateMoneyIn and UpdateMoneyOut
+     * Our state can perform these actions: IssueBalance, UpdateMoneyIn, UpdateMoneyOut,
+     * Consolidate (move funds between the stripes of one account), Transfer (move funds between two accounts)
+     * and Compact/Reissue (end a long chain and re-issue the balance as a fresh state)
      */
     public interface Commands extends CommandData {
         class Issue implements BalanceContract.Commands {}
         class Deposit implements BalanceContract.Commands {}
         class Withdraw implements BalanceContract.Commands {}
+        class Consolidate implements BalanceContract.Commands {}
+        class Transfer implements BalanceContract.Commands {}
+        class Compact implements BalanceContract.Commands {}
+        class Reissue implements BalanceContract.Commands {
+            // the Compact transaction that ended the previous chain, for audit
+            private final SecureHash compacted;
+            // the dedicated compaction key that must sign the re-issue (see CompactionKey)
+            private final PublicKey reissuer;
+
+            @ConstructorForDeserialization
+            public Reissue(SecureHash compacted, PublicKey reissuer) {
+                this.compacted = compacted;
+                this.reissuer = reissuer;
+            }
+
+            /**
+             * Reads re-issues recorded before they needed a compaction key.
+             */
+            @DeprecatedConstructorForDeserialization(version = 1)
+            public Reissue(SecureHash compacted) { this(compacted, null); }
+
+            public SecureHash getCompacted() { return compacted; }
+
+            public PublicKey getReissuer() { return reissuer; }
+        }
     }
-}
\ No newline at end of file
+}
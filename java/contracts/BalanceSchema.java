@@ -0,0 +1,6 @@
+package com.template.schemas;
+
+/**
+ * The family of schemas for Balance - one class per schema version.
+ */
+public class BalanceSchema { }
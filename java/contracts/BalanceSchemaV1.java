@@ -0,0 +1,74 @@
+package com.template.schemas;
+
+import com.google.common.collect.ImmutableList;
+import net.corda.core.schemas.MappedSchema;
+import net.corda.core.schemas.PersistentState;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import java.util.UUID;
+
+/**
+ * Balance schema - maps every Balance to a row in balance_states so the vault can filter and sort
+ * balances in SQL instead of deserialising every state.
+ *      - linear_id, account_id, currency and balance are indexed for the Controller's query endpoints.
+ *      - money_in and money_out are stored but not indexed: no endpoint filters or sorts on them, and an
+ *        index on each would slow every posting. BalanceSchemaV2 stops mapping them altogether.
+ */
+public class BalanceSchemaV1 extends MappedSchema {
+    public BalanceSchemaV1() {
+        super(BalanceSchema.class, 1, ImmutableList.of(PersistentBalance.class));
+    }
+
+    @Override
+    public String getMigrationResource() { return "balance.changelog-master"; }
+
+    @Entity
+    @Table(name = "balance_states", indexes = {
+            @Index(name = "balance_linear_id_idx", columnList = "linear_id"),
+            @Index(name = "balance_account_id_idx", columnList = "account_id"),
+            @Index(name = "balance_currency_balance_idx", columnList = "currency,balance"),
+            @Index(name = "balance_balance_idx", columnList = "balance")
+    })
+    public static class PersistentBalance extends PersistentState {
+        @Column(name = "linear_id", nullable = false) private final UUID linearId;
+        @Column(name = "account_id", nullable = false) private final UUID accountId;
+        @Column(name = "currency", nullable = false) private final String currency;
+        @Column(name = "balance", nullable = false) private final double balance;
+        @Column(name = "money_in", nullable = false) private final double moneyIn;
+        @Column(name = "money_out", nullable = false) private final double moneyOut;
+        @Column(name = "stripe", nullable = false) private final int stripe;
+
+        public PersistentBalance(UUID linearId, UUID accountId, String currency,
+                                 double balance, double moneyIn, double moneyOut, int stripe) {
+            this.linearId = linearId;
+            this.accountId = accountId;
+            this.currency = currency;
+            this.balance = balance;
+            this.moneyIn = moneyIn;
+            this.moneyOut = moneyOut;
+            this.stripe = stripe;
+        }
+
+        // Default constructor required by hibernate.
+        public PersistentBalance() {
+            this(null, null, null, 0, 0, 0, 0);
+        }
+
+        public UUID getLinearId() { return linearId; }
+
+        public UUID getAccountId() { return accountId; }
+
+        public String getCurrency() { return currency; }
+
+        public double getBalance() { return balance; }
+
+        public double getMoneyIn() { return moneyIn; }
+
+        public double getMoneyOut() { return moneyOut; }
+
+        public int getStripe() { return stripe; }
+    }
+}
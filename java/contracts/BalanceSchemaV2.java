@@ -0,0 +1,64 @@
+package com.template.schemas;
+
+import com.google.common.collect.ImmutableList;
+import net.corda.core.schemas.MappedSchema;
+import net.corda.core.schemas.PersistentState;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import java.util.UUID;
+
+/**
+ * Balance schema v2 - the balance as an exact BIGINT in the currency's minor unit, in balance_states_v2.
+ *      - money_in/money_out are not mapped; no query uses them and they widened every row.
+ *      - linear_id, account_id, currency and balance are indexed for the Controller's query endpoints.
+ *      - the migration copies every v1 row across, converting the balance to minor units.
+ */
+public class BalanceSchemaV2 extends MappedSchema {
+    public BalanceSchemaV2() {
+        super(BalanceSchema.class, 2, ImmutableList.of(PersistentBalance.class));
+    }
+
+    @Override
+    public String getMigrationResource() { return "balance.changelog-master"; }
+
+    @Entity
+    @Table(name = "balance_states_v2", indexes = {
+            @Index(name = "balance_v2_linear_id_idx", columnList = "linear_id"),
+            @Index(name = "balance_v2_account_id_idx", columnList = "account_id"),
+            @Index(name = "balance_v2_currency_balance_idx", columnList = "currency,balance"),
+            @Index(name = "balance_v2_balance_idx", columnList = "balance")
+    })
+    public static class PersistentBalance extends PersistentState {
+        @Column(name = "linear_id", nullable = false) private final UUID linearId;
+        @Column(name = "account_id", nullable = false) private final UUID accountId;
+        @Column(name = "currency", nullable = false) private final String currency;
+        @Column(name = "balance", nullable = false) private final long balance;
+        @Column(name = "stripe", nullable = false) private final int stripe;
+
+        public PersistentBalance(UUID linearId, UUID accountId, String currency, long balance, int stripe) {
+            this.linearId = linearId;
+            this.accountId = accountId;
+            this.currency = currency;
+            this.balance = balance;
+            this.stripe = stripe;
+        }
+
+        // Default constructor required by hibernate.
+        public PersistentBalance() {
+            this(null, null, null, 0, 0);
+        }
+
+        public UUID getLinearId() { return linearId; }
+
+        public UUID getAccountId() { return accountId; }
+
+        public String getCurrency() { return currency; }
+
+        public long getBalance() { return balance; }
+
+        public int getStripe() { return stripe; }
+    }
+}
@@ -0,0 +1,6 @@
+package com.template.schemas;
+
+/**
+ * The family of schemas for the node's record of external operations - one class per schema version.
+ */
+public class OperationSchema { }
@@ -0,0 +1,91 @@
+package com.template.schemas;
+
+import com.google.common.collect.ImmutableList;
+import net.corda.core.schemas.MappedSchema;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import java.time.Instant;
+
+/**
+ * Operation schema - one row in balance_operations per unit of work a flow hands to a node service
+ * through a FlowExternalAsyncOperation, keyed by its deduplication id, so a flow that re-runs the
+ * operation after a node restart finds the outcome of the first run instead of posting twice.
+ *      - request describes what was asked, so the work can be resumed without the original arguments.
+ *      - updated_at is indexed for pruning.
+ */
+public class OperationSchemaV1 extends MappedSchema {
+    public OperationSchemaV1() {
+        super(OperationSchema.class, 1, ImmutableList.of(PersistentOperation.class));
+    }
+
+    @Override
+    public String getMigrationResource() { return "operation.changelog-master"; }
+
+    @Entity
+    @Table(name = "balance_operations", indexes = {
+            @Index(name = "balance_operations_updated_at_idx", columnList = "updated_at")
+    })
+    public static class PersistentOperation {
+        /**
+         * QUEUED - recorded, no flow started for it yet.
+         * STARTED - its flow may be running; only the flow's outcome tells whether it was applied.
+         * DONE, FAILED - settled by transaction_id, or failed with error.
+         */
+        public enum Status { QUEUED, STARTED, DONE, FAILED }
+
+        @Id @Column(name = "operation_id", nullable = false) private String operationId;
+        @Column(name = "request", nullable = false, length = 1024) private String request;
+        @Enumerated(EnumType.STRING)
+        @Column(name = "status", nullable = false, length = 16) private Status status;
+        @Column(name = "transaction_id", length = 64) private String transactionId;
+        @Column(name = "error", length = 1024) private String error;
+        @Column(name = "updated_at", nullable = false) private Instant updatedAt;
+
+        public PersistentOperation(String operationId, String request, Instant updatedAt) {
+            this.operationId = operationId;
+            this.request = request;
+            this.status = Status.QUEUED;
+            this.updatedAt = updatedAt;
+        }
+
+        // Default constructor required by hibernate.
+        public PersistentOperation() {
+            this(null, null, null);
+        }
+
+        public String getOperationId() { return operationId; }
+
+        public String getRequest() { return request; }
+
+        public Status getStatus() { return status; }
+
+        public String getTransactionId() { return transactionId; }
+
+        public String getError() { return error; }
+
+        public Instant getUpdatedAt() { return updatedAt; }
+
+        public void started(Instant at) {
+            this.status = Status.STARTED;
+            this.updatedAt = at;
+        }
+
+        public void done(String transactionId, Instant at) {
+            this.status = Status.DONE;
+            this.transactionId = transactionId;
+            this.updatedAt = at;
+        }
+
+        public void failed(String error, Instant at) {
+            this.status = Status.FAILED;
+            this.error = error;
+            this.updatedAt = at;
+        }
+    }
+}
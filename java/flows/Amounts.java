@@ -0,0 +1,35 @@
+package com.template.flows;
+import com.template.states.Balance;
+import net.corda.core.flows.FlowException;
+
+import java.math.BigDecimal;
+
+/**
+ * Flow amounts are exact decimals in major units (10.25 USD); balances hold minor units (1025).
+ */
+public class Amounts {
+    private Amounts() {}
+
+    /**
+     * amount in the balance's minor units, rejecting amounts finer than the currency allows.
+     */
+    public static long minorUnits(Balance balance, BigDecimal amount) throws FlowException {
+        try {
+            return balance.toMinorUnits(amount);
+        } catch (IllegalArgumentException e) {
+            throw new FlowException(e.getMessage());
+        }
+    }
+
+    /**
+     * totalMinor + amountMinor for a moneyIn or moneyOut total, failing the flow rather than wrapping
+     * round on overflow.
+     */
+    public static long add(long totalMinor, long amountMinor) throws FlowException {
+        try {
+            return Math.addExact(totalMinor, amountMinor);
+        } catch (ArithmeticException e) {
+            throw new FlowException("Adding " + amountMinor + " minor units would overflow a total of " + totalMinor);
+        }
+    }
+}
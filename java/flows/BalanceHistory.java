@@ -0,0 +1,215 @@
+package com.template.flows;
+import com.template.contracts.BalanceContract;
+import com.template.schemas.BalanceSchemaV2;
+import com.template.states.Balance;
+import net.corda.core.contracts.*;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.*;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.*;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.transactions.NotaryChangeWireTransaction;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.WireTransaction;
+
+import java.lang.reflect.Field;
+import java.time.Instant;
+import java.util.*;
+import java.util.stream.Collectors;
+public class BalanceHistory {
+    public static final int MAX_PAGE_SIZE = 1000;
+    // the command reported for a version produced by a notary-change transaction
+    public static final String NOTARY_CHANGE = "NotaryChange";
+
+    /**
+     * One version of a balance.
+     *      - deltaMinor is the change in balance from the previous version of the same linearId, in minor
+     *        units; for an Issue it is the whole (zero) balance, and a Reissue continues the chain its
+     *        Compact ended, so its delta is 0. A notary change leaves the balance as it was, delta 0.
+     *      - command names the BalanceContract commands of the transaction that produced the version,
+     *        or NotaryChange for a notary-change transaction, which has no commands.
+     *      - consumed is whether the version had been spent by the end of the requested period.
+     */
+    @CordaSerializable
+    public static class Entry {
+        private final StateRef ref;
+        private final Balance balance;
+        private final long deltaMinor;
+        private final String command;
+        private final Instant recordedTime;
+        private final boolean consumed;
+
+        public Entry(StateRef ref, Balance balance, long deltaMinor, String command, Instant recordedTime, boolean consumed) {
+            this.ref = ref;
+            this.balance = balance;
+            this.deltaMinor = deltaMinor;
+            this.command = command;
+            this.recordedTime = recordedTime;
+            this.consumed = consumed;
+        }
+
+        public StateRef getRef() { return ref; }
+
+        public Balance getBalance() { return balance; }
+
+        public long getDeltaMinor() { return deltaMinor; }
+
+        public String getCommand() { return command; }
+
+        public Instant getRecordedTime() { return recordedTime; }
+
+        public boolean isConsumed() { return consumed; }
+    }
+
+    @CordaSerializable
+    public static class Page {
+        private final List<Entry> entries;
+        private final long totalStatesAvailable;
+
+        public Page(List<Entry> entries, long totalStatesAvailable) {
+            this.entries = entries;
+            this.totalStatesAvailable = totalStatesAvailable;
+        }
+
+        public List<Entry> getEntries() { return entries; }
+
+        public long getTotalStatesAvailable() { return totalStatesAvailable; }
+    }
+
+    @StartableByRPC
+    public static class BalanceHistoryInitiator extends FlowLogic<Page>{
+        /**
+         * Flow Parameters
+         *      - accountId is a plain balance or a striped account; a striped account's history interleaves
+         *        the versions of all its stripes.
+         *      - from and to bound the time the versions were recorded, inclusive.
+         *      - page (from 1) and pageSize select one page of the versions, oldest first.
+         */
+        private UniqueIdentifier accountId;
+        private Instant from;
+        private Instant to;
+        private int page;
+        private int pageSize;
+
+        public BalanceHistoryInitiator(UniqueIdentifier accountId, Instant from, Instant to, int page, int pageSize) throws IllegalArgumentException {
+            if (from.isAfter(to)) {
+                throw new IllegalArgumentException("from must not be after to");
+            }
+            if (page < 1 || pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+                throw new IllegalArgumentException("page must be at least 1 and pageSize between 1 and " + MAX_PAGE_SIZE);
+            }
+            this.accountId = accountId;
+            this.from = from;
+            this.to = to;
+            this.page = page;
+            this.pageSize = pageSize;
+        }
+
+        /**
+         * Reads the vault and transaction storage only, so it never suspends.
+         */
+        @Override
+        public Page call() throws FlowException {
+            /**
+             * Versions - consumed and unconsumed, found through the indexed account_id column of
+             *            balance_states_v2, recorded in [from, to], in recorded order.
+             */
+            QueryCriteria criteria = new QueryCriteria.VaultCustomQueryCriteria(
+                    Builder.equal(accountIdColumn(), accountId.getId()), Vault.StateStatus.ALL)
+                    .and(new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.ALL).withTimeCondition(
+                            new QueryCriteria.TimeCondition(QueryCriteria.TimeInstantType.RECORDED, new ColumnPredicate.Between<>(from, to))));
+            Sort recordedOrder = new Sort(Arrays.asList(
+                    new Sort.SortColumn(new SortAttribute.Standard(Sort.VaultStateAttribute.RECORDED_TIME), Sort.Direction.ASC),
+                    new Sort.SortColumn(new SortAttribute.Standard(Sort.CommonStateAttribute.STATE_REF), Sort.Direction.ASC)));
+            Vault.Page<Balance> result = getServiceHub().getVaultService()
+                    .queryBy(Balance.class, criteria, new PageSpecification(page, pageSize), recordedOrder);
+            /**
+             * Deltas - against the previous version of the same linearId, taken from this page when it is
+             *          here and from the producing transaction's inputs otherwise.
+             */
+            Map<SecureHash, SignedTransaction> transactions = new HashMap<>();
+            Map<UniqueIdentifier, Balance> previous = new HashMap<>();
+            List<Entry> entries = new ArrayList<>();
+            for (int i = 0; i < result.getStates().size(); i++) {
+                StateAndRef<Balance> version = result.getStates().get(i);
+                Vault.StateMetadata metadata = result.getStatesMetadata().get(i);
+                Balance balance = version.getState().getData();
+                SignedTransaction tx = transaction(transactions, version.getRef().getTxhash());
+                long delta;
+                String command;
+                if (tx.getCoreTransaction() instanceof WireTransaction) {
+                    List<BalanceContract.Commands> commands = tx.getTx().getCommands().stream()
+                            .map(Command::getValue)
+                            .filter(BalanceContract.Commands.class::isInstance)
+                            .map(BalanceContract.Commands.class::cast)
+                            .collect(Collectors.toList());
+                    Balance before = previous.containsKey(balance.getLinearId())
+                            ? previous.get(balance.getLinearId())
+                            : predecessor(transactions, tx, version.getRef().getIndex(), commands, balance.getLinearId());
+                    delta = before == null ? balance.getBalanceMinor() : balance.getBalanceMinor() - before.getBalanceMinor();
+                    command = commandNames(commands);
+                } else {
+                    // a notary change (see Transfer) moves the state to another notary without changing it
+                    delta = 0;
+                    command = tx.getCoreTransaction() instanceof NotaryChangeWireTransaction
+                            ? NOTARY_CHANGE : tx.getCoreTransaction().getClass().getSimpleName();
+                }
+                boolean consumed = metadata.getConsumedTime() != null && !metadata.getConsumedTime().isAfter(to);
+                entries.add(new Entry(version.getRef(), balance, delta, command, metadata.getRecordedTime(), consumed));
+                previous.put(balance.getLinearId(), balance);
+            }
+            return new Page(entries, result.getTotalStatesAvailable());
+        }
+
+        /**
+         * The version of linearId that tx consumed. Flows add inputs and outputs in step, so the input at the
+         * output's index is tried before the rest; a Reissue has no inputs, so its Compact's are used.
+         * Inputs are read through SignedTransaction, which also resolves them for a notary change.
+         */
+        private Balance predecessor(Map<SecureHash, SignedTransaction> transactions, SignedTransaction tx, int index,
+                                    List<BalanceContract.Commands> commands, UniqueIdentifier linearId) throws FlowException {
+            List<StateRef> inputs = tx.getInputs();
+            for (BalanceContract.Commands command : commands) {
+                if (command instanceof BalanceContract.Commands.Reissue) {
+                    inputs = transaction(transactions, ((BalanceContract.Commands.Reissue) command).getCompacted()).getInputs();
+                }
+            }
+            if (index < inputs.size()) {
+                Balance aligned = balanceOf(inputs.get(index), linearId);
+                if (aligned != null) return aligned;
+            }
+            for (StateRef input : inputs) {
+                Balance candidate = balanceOf(input, linearId);
+                if (candidate != null) return candidate;
+            }
+            return null;
+        }
+
+        private Balance balanceOf(StateRef ref, UniqueIdentifier linearId) throws TransactionResolutionException {
+            ContractState state = getServiceHub().loadState(ref).getData();
+            return state instanceof Balance && ((Balance) state).getLinearId().equals(linearId) ? (Balance) state : null;
+        }
+
+        private SignedTransaction transaction(Map<SecureHash, SignedTransaction> transactions, SecureHash id) throws FlowException {
+            SignedTransaction tx = transactions.get(id);
+            if (tx == null) {
+                tx = getServiceHub().getValidatedTransactions().getTransaction(id);
+                if (tx == null) throw new FlowException("Transaction " + id + " is not in this node's storage");
+                transactions.put(id, tx);
+            }
+            return tx;
+        }
+
+        private static String commandNames(List<BalanceContract.Commands> commands) {
+            return commands.stream().map(command -> command.getClass().getSimpleName()).collect(Collectors.joining(","));
+        }
+
+        private static Field accountIdColumn() {
+            try {
+                return BalanceSchemaV2.PersistentBalance.class.getDeclaredField("accountId");
+            } catch (NoSuchFieldException e) {
+                throw new IllegalStateException("balance_states_v2 has no column accountId", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.template.flows;
+import com.template.states.Balance;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.messaging.DataFeed;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.node.services.ServiceLifecycleEvent;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rx.Subscription;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory index of the unconsumed Balance states on this node.
+ *
+ * Bootstrapped from the vault once the node has started and kept current from vault updates, so the
+ * flows can resolve their inputs without a Hibernate query per posting. Lookups before the index is
+ * ready, or for unknown ids, return null/empty and the caller falls back to the vault.
+ *
+ * The bootstrap reads the vault with BalanceScan while the feed is already applying updates. A balance
+ * the feed has touched is never overwritten by a scanned row, which may predate the update. If the feed
+ * fails, the index stops answering and bootstraps again from scratch.
+ */
+@CordaService
+public class BalanceIndex extends SingletonSerializeAsToken {
+    private static final Logger logger = LoggerFactory.getLogger(BalanceIndex.class);
+    private static final long RETRY_SECONDS = 5;
+
+    private final AppServiceHub serviceHub;
+    private final ConcurrentHashMap<UniqueIdentifier, StateAndRef<Balance>> byLinearId = new ConcurrentHashMap<>();
+    // linearIds of the stripes of each striped account
+    private final ConcurrentHashMap<UniqueIdentifier, Set<UniqueIdentifier>> stripesByAccount = new ConcurrentHashMap<>();
+    private volatile boolean ready = false;
+    // guarded by this; writers lock, readers go through the concurrent maps
+    private Set<UniqueIdentifier> fedDuringScan = null;
+    private Subscription subscription;
+    private long generation = 0;
+    private final ScheduledExecutorService bootstrapper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "balance-index");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public BalanceIndex(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        // the vault can only be queried from services once the node is fully started
+        serviceHub.register(AppServiceHub.SERVICE_PRIORITY_NORMAL, event -> {
+            if (event == ServiceLifecycleEvent.STATE_MACHINE_STARTED) bootstrapper.execute(this::bootstrap);
+        });
+    }
+
+    private void bootstrap() {
+        QueryCriteria criteria = new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED)
+                .withRelevancyStatus(Vault.RelevancyStatus.RELEVANT);
+        final long current;
+        synchronized (this) {
+            current = ++generation;
+            byLinearId.clear();
+            stripesByAccount.clear();
+            fedDuringScan = new HashSet<>();
+        }
+        try {
+            DataFeed<Vault.Page<Balance>, Vault.Update<Balance>> feed = serviceHub.getVaultService()
+                    .trackBy(Balance.class, criteria, BalanceScan.firstPage(), BalanceScan.order());
+            Subscription newSubscription = feed.getUpdates().subscribe(update -> apply(current, update),
+                    error -> failed(current, error));
+            synchronized (this) {
+                subscription = newSubscription;
+            }
+            BalanceScan.scan(feed.getSnapshot(), criteria,
+                    (pageCriteria, paging, sort) -> serviceHub.getVaultService().queryBy(Balance.class, pageCriteria, paging, sort),
+                    page -> scanned(current, page));
+            synchronized (this) {
+                if (generation != current) return;
+                fedDuringScan = null;
+                ready = true;
+            }
+            logger.info("Balance index ready with {} states", byLinearId.size());
+        } catch (RuntimeException e) {
+            failed(current, e);
+        }
+    }
+
+    /**
+     * Stop answering and bootstrap again, unless a newer bootstrap has already taken over.
+     */
+    private void failed(long fromGeneration, Throwable error) {
+        synchronized (this) {
+            if (generation != fromGeneration) return;
+            generation++;
+            ready = false;
+            if (subscription != null) subscription.unsubscribe();
+            subscription = null;
+        }
+        logger.error("Balance index lost its vault feed, flows will query the vault until it is rebuilt", error);
+        bootstrapper.schedule(this::bootstrap, RETRY_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private synchronized boolean scanned(long fromGeneration, List<StateAndRef<Balance>> page) {
+        if (generation != fromGeneration) return false;
+        for (StateAndRef<Balance> stateAndRef : page) {
+            // the feed has the newer word on any balance it has touched
+            if (!fedDuringScan.contains(stateAndRef.getState().getData().getLinearId())) put(stateAndRef);
+        }
+        return true;
+    }
+
+    private synchronized void apply(long fromGeneration, Vault.Update<Balance> update) {
+        if (generation != fromGeneration) return;
+        for (StateAndRef<Balance> consumed : update.getConsumed()) {
+            Balance balance = consumed.getState().getData();
+            if (fedDuringScan != null) fedDuringScan.add(balance.getLinearId());
+            // only drop the entry if a newer version has not already replaced it
+            if (byLinearId.remove(balance.getLinearId(), consumed) && balance.isStriped()) {
+                Set<UniqueIdentifier> stripes = stripesByAccount.get(balance.getAccountId());
+                if (stripes != null) stripes.remove(balance.getLinearId());
+            }
+        }
+        for (StateAndRef<Balance> produced : update.getProduced()) {
+            if (fedDuringScan != null) fedDuringScan.add(produced.getState().getData().getLinearId());
+            put(produced);
+        }
+    }
+
+    // guarded by this
+    private void put(StateAndRef<Balance> stateAndRef) {
+        Balance balance = stateAndRef.getState().getData();
+        byLinearId.put(balance.getLinearId(), stateAndRef);
+        if (balance.isStriped()) {
+            stripesByAccount.computeIfAbsent(balance.getAccountId(), id -> ConcurrentHashMap.newKeySet()).add(balance.getLinearId());
+        }
+    }
+
+    /**
+     * Latest unconsumed state of a balance, or null on a miss.
+     */
+    public StateAndRef<Balance> get(UniqueIdentifier linearId) {
+        return ready ? byLinearId.get(linearId) : null;
+    }
+
+    /**
+     * The plain balance or the stripes behind an account id, or an empty list on a miss.
+     * Stripes may be soft-locked by other flows; reserving them is left to the caller.
+     */
+    public List<StateAndRef<Balance>> getAccount(UniqueIdentifier accountId) {
+        if (!ready) return Collections.emptyList();
+        StateAndRef<Balance> plain = byLinearId.get(accountId);
+        if (plain != null) return Collections.singletonList(plain);
+        List<StateAndRef<Balance>> stripes = new ArrayList<>();
+        for (UniqueIdentifier stripeId : stripesByAccount.getOrDefault(accountId, Collections.emptySet())) {
+            StateAndRef<Balance> stripe = byLinearId.get(stripeId);
+            if (stripe != null) stripes.add(stripe);
+        }
+        return stripes;
+    }
+}
@@ -0,0 +1,90 @@
+package com.template.flows;
+import com.template.schemas.BalanceSchemaV2;
+import com.template.states.Balance;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.Builder;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.Sort;
+import net.corda.core.node.services.vault.SortAttribute;
+
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Predicate;
+
+/**
+ * The bootstrap scan shared by the read models built over unconsumed balances: BalanceIndex,
+ * CurrencyTotals and the webserver's BalanceCache. The webserver's /balances/stream reads with it too.
+ *
+ * Each opens its vault feed with order() and the first page, then hands that snapshot page to scan(),
+ * which reads the rest with keyset paging: every page asks for the states whose linear_id is above the
+ * last one read, in linear_id order. Offset paging skips or repeats states when a posting consumes and
+ * reproduces them between pages; a keyset cannot. An unconsumed Balance's linearId is unique, and the
+ * column is indexed in balance_states_v2. Vault criteria cannot compare state refs, which is why the
+ * keyset is linear_id rather than STATE_REF.
+ *
+ * A state a posting moves behind the keyset while the scan runs is not read again. The feed delivers it,
+ * and the read models must let feed updates win over scanned rows.
+ */
+public class BalanceScan {
+    public static final int PAGE_SIZE = 1000;
+
+    private BalanceScan() {}
+
+    /**
+     * One page query, over RPC or the node's VaultService.
+     */
+    @FunctionalInterface
+    public interface PageQuery {
+        Vault.Page<Balance> query(QueryCriteria criteria, PageSpecification paging, Sort sort);
+    }
+
+    /**
+     * The order the feed's snapshot page and every later page are read in.
+     */
+    public static Sort order() {
+        return new Sort(Collections.singleton(new Sort.SortColumn(
+                new SortAttribute.Custom(BalanceSchemaV2.PersistentBalance.class, "linearId"), Sort.Direction.ASC)));
+    }
+
+    public static PageSpecification firstPage() {
+        return firstPage(PAGE_SIZE);
+    }
+
+    public static PageSpecification firstPage(int pageSize) {
+        return new PageSpecification(1, pageSize);
+    }
+
+    /**
+     * Hand first and every later page of criteria to sink, until a page comes back short or sink
+     * returns false.
+     */
+    public static void scan(Vault.Page<Balance> first, QueryCriteria criteria, PageQuery query,
+                            Predicate<List<StateAndRef<Balance>>> sink) {
+        scan(first, criteria, PAGE_SIZE, query, sink);
+    }
+
+    /**
+     * scan() with pages of pageSize states; first must have been read with firstPage(pageSize).
+     */
+    public static void scan(Vault.Page<Balance> first, QueryCriteria criteria, int pageSize, PageQuery query,
+                            Predicate<List<StateAndRef<Balance>>> sink) {
+        List<StateAndRef<Balance>> page = first.getStates();
+        while (sink.test(page) && page.size() == pageSize) {
+            UUID last = page.get(page.size() - 1).getState().getData().getLinearId().getId();
+            QueryCriteria after = criteria.and(new QueryCriteria.VaultCustomQueryCriteria(Builder.greaterThan(linearIdColumn(), last)));
+            page = query.query(after, firstPage(pageSize), order()).getStates();
+        }
+    }
+
+    private static Field linearIdColumn() {
+        try {
+            return BalanceSchemaV2.PersistentBalance.class.getDeclaredField("linearId");
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException("balance_states_v2 has no column linearId", e);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package com.template.flows;
+import co.paralleluniverse.fibers.Suspendable;
+import com.template.contracts.BalanceContract;
+import com.template.states.Balance;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.stream.Collectors;
+public class BatchPosting {
+    /**
+     * Maximum number of balances moved by one transaction.
+     * Bigger transactions amortise notarisation better but take longer to verify and resolve.
+     */
+    public static final int DEFAULT_MAX_BALANCES_PER_TX = 500;
+
+    /**
+     * A single money movement against one balance.
+     *      - amount is in major units (10.25 USD) and may not be finer than the balance's currency allows.
+     *      - type is DEPOSIT (moneyIn grows) or WITHDRAW (moneyOut grows).
+     *      - several postings may target the same balance, they are netted into one output.
+     */
+    @CordaSerializable
+    public static class Posting {
+        public enum Type { DEPOSIT, WITHDRAW }
+
+        private final UniqueIdentifier balanceId;
+        private final Type type;
+        private final BigDecimal amount;
+
+        public Posting(UniqueIdentifier balanceId, Type type, BigDecimal amount) throws IllegalArgumentException {
+            if (amount.signum() <= 0) {
+                throw new IllegalArgumentException("amount must be greater than 0");
+            }
+            this.balanceId = balanceId;
+            this.type = type;
+            this.amount = amount;
+        }
+
+        public UniqueIdentifier getBalanceId() { return balanceId; }
+
+        public Type getType() { return type; }
+
+        public BigDecimal getAmount() { return amount; }
+    }
+
+    @InitiatingFlow
+    @StartableByRPC
+    @StartableByService
+    public static class BatchPostingInitiator extends FlowLogic<List<SignedTransaction>>{
+        /**
+         * Flow Parameters
+         *      - postings is the list of deposits/withdrawals to settle.
+         *      - maxBalancesPerTx caps how many balances one transaction consumes.
+         *      - operationIds, when given, has one OperationLog id per posting; each is marked DONE with the
+         *        transaction that settled its posting, in the same database transaction as the flow's result.
+         */
+        private List<Posting> postings;
+        private int maxBalancesPerTx;
+        private List<String> operationIds;
+
+        public BatchPostingInitiator(List<Posting> postings) {
+            this(postings, DEFAULT_MAX_BALANCES_PER_TX);
+        }
+
+        public BatchPostingInitiator(List<Posting> postings, int maxBalancesPerTx) throws IllegalArgumentException {
+            this(postings, maxBalancesPerTx, Collections.emptyList());
+        }
+
+        public BatchPostingInitiator(List<Posting> postings, List<String> operationIds) throws IllegalArgumentException {
+            this(postings, DEFAULT_MAX_BALANCES_PER_TX, operationIds);
+        }
+
+        public BatchPostingInitiator(List<Posting> postings, int maxBalancesPerTx, List<String> operationIds) throws IllegalArgumentException {
+            if (postings.isEmpty()) {
+                throw new IllegalArgumentException("at least one posting is required");
+            }
+            if (maxBalancesPerTx < 1) {
+                throw new IllegalArgumentException("maxBalancesPerTx must be greater than 0");
+            }
+            if (!operationIds.isEmpty() && operationIds.size() != postings.size()) {
+                throw new IllegalArgumentException("operationIds must have one entry per posting");
+            }
+            this.postings = postings;
+            this.maxBalancesPerTx = maxBalancesPerTx;
+            this.operationIds = new ArrayList<>(operationIds);
+        }
+
+        @Suspendable
+        public List<SignedTransaction> call() throws FlowException {
+            /**
+             * Net postings - sum deposits and withdrawals per balance, keeping the order balances first appear in.
+             */
+            Map<UniqueIdentifier, BigDecimal[]> netted = new LinkedHashMap<>();
+            for (Posting posting : postings) {
+                BigDecimal[] deltas = netted.computeIfAbsent(posting.getBalanceId(), id -> new BigDecimal[]{BigDecimal.ZERO, BigDecimal.ZERO});
+                int side = posting.getType() == Posting.Type.DEPOSIT ? 0 : 1;
+                deltas[side] = deltas[side].add(posting.getAmount());
+            }
+            /**
+             * Input States - one vault query for every balance in the batch instead of one per posting.
+             */
+            Map<UniqueIdentifier, StateAndRef<Balance>> inputs = queryBalances(netted);
+            for (UniqueIdentifier balanceId : netted.keySet()) {
+                while (!inputs.containsKey(balanceId) && Stripes.awaitCompaction(this, balanceId)) {
+                    inputs.putAll(queryBalances(Collections.singletonMap(balanceId, netted.get(balanceId))));
+                }
+                if (!inputs.containsKey(balanceId)) {
+                    throw new InsufficientStateException("No unconsumed balance found for " + balanceId);
+                }
+            }
+            /**
+             * Build Transactions - a transaction has a single notary, so balances are grouped by the notary
+             *                      they live on, then chunked so no transaction exceeds maxBalancesPerTx.
+             */
+            Map<Party, List<UniqueIdentifier>> byNotary = new LinkedHashMap<>();
+            for (UniqueIdentifier balanceId : netted.keySet()) {
+                byNotary.computeIfAbsent(inputs.get(balanceId).getState().getNotary(), notary -> new ArrayList<>()).add(balanceId);
+            }
+            List<List<UniqueIdentifier>> chunks = new ArrayList<>();
+            for (List<UniqueIdentifier> balanceIds : byNotary.values()) {
+                for (int from = 0; from < balanceIds.size(); from += maxBalancesPerTx) {
+                    chunks.add(balanceIds.subList(from, Math.min(from + maxBalancesPerTx, balanceIds.size())));
+                }
+            }
+            List<SignedTransaction> results = new ArrayList<>();
+            Map<UniqueIdentifier, SecureHash> settledBy = new HashMap<>();
+            for (List<UniqueIdentifier> chunk : chunks) {
+                final Party notary = inputs.get(chunk.get(0)).getState().getNotary();
+                TransactionBuilder txBuilder = new TransactionBuilder(notary);
+                boolean deposits = false, withdrawals = false;
+                for (UniqueIdentifier balanceId : chunk) {
+                    StateAndRef<Balance> balanceStateAndRef = inputs.get(balanceId);
+                    Balance originalBalance = balanceStateAndRef.getState().getData();
+                    BigDecimal[] deltas = netted.get(balanceId);
+                    long depositMinor = Amounts.minorUnits(originalBalance, deltas[0]);
+                    long withdrawalMinor = Amounts.minorUnits(originalBalance, deltas[1]);
+                    Balance output = originalBalance.withTotals(Amounts.add(originalBalance.getMoneyInMinor(), depositMinor),
+                            Amounts.add(originalBalance.getMoneyOutMinor(), withdrawalMinor));
+                    txBuilder.addInputState(balanceStateAndRef).addOutputState(output);
+                    deposits |= depositMinor > 0;
+                    withdrawals |= withdrawalMinor > 0;
+                }
+                if (deposits) txBuilder.addCommand(new BalanceContract.Commands.Deposit(), getOurIdentity().getOwningKey());
+                if (withdrawals) txBuilder.addCommand(new BalanceContract.Commands.Withdraw(), getOurIdentity().getOwningKey());
+                /**
+                 * Verify, sign and notarise - once per chunk rather than once per posting.
+                 */
+                txBuilder.verify(getServiceHub());
+                SignedTransaction sTx = getServiceHub().signInitialTransaction(txBuilder);
+                SignedTransaction result = subFlow(new FinalityFlow(sTx, Collections.emptyList()));
+                chunk.forEach(balanceId -> settledBy.put(balanceId, result.getId()));
+                results.add(result);
+            }
+            /**
+             * Record the outcome - commits with the flow's result, so a caller re-running its operation
+             * after a restart finds the transaction instead of posting again.
+             */
+            if (!operationIds.isEmpty()) {
+                Map<SecureHash, List<String>> byTx = new HashMap<>();
+                for (int i = 0; i < postings.size(); i++) {
+                    byTx.computeIfAbsent(settledBy.get(postings.get(i).getBalanceId()), txId -> new ArrayList<>()).add(operationIds.get(i));
+                }
+                OperationLog operations = getServiceHub().cordaService(OperationLog.class);
+                byTx.forEach((txId, ids) -> operations.done(ids, txId));
+            }
+            return results;
+        }
+
+        /**
+         * Resolve every requested balance from the BalanceIndex, then page through the vault for the misses
+         * so large batches never hit the default page cap. Ids still missing are striped accounts (their id
+         * is the stripes' externalId), or balances being compacted: those are resolved like Deposit and
+         * Withdraw do, through Stripes, and a free stripe that can take the account's net posting is reserved.
+         */
+        @Suspendable
+        private Map<UniqueIdentifier, StateAndRef<Balance>> queryBalances(Map<UniqueIdentifier, BigDecimal[]> netted) throws FlowException {
+            BalanceIndex index = getServiceHub().cordaService(BalanceIndex.class);
+            Map<UniqueIdentifier, StateAndRef<Balance>> found = new HashMap<>();
+            List<UniqueIdentifier> misses = new ArrayList<>();
+            for (UniqueIdentifier balanceId : netted.keySet()) {
+                StateAndRef<Balance> indexed = index.get(balanceId);
+                if (indexed != null) found.put(balanceId, indexed);
+                else misses.add(balanceId);
+            }
+            if (misses.isEmpty()) return found;
+
+            QueryCriteria.LinearStateQueryCriteria inputCriteria = new QueryCriteria.LinearStateQueryCriteria()
+                    .withUuid(misses.stream().map(UniqueIdentifier::getId).collect(Collectors.toList()))
+                    .withStatus(Vault.StateStatus.UNCONSUMED)
+                    .withRelevancyStatus(Vault.RelevancyStatus.RELEVANT);
+            int pageSize = Math.max(1, Math.min(misses.size(), maxBalancesPerTx));
+            for (int page = 1; found.size() < netted.size(); page++) {
+                List<StateAndRef<Balance>> states = getServiceHub().getVaultService()
+                        .queryBy(Balance.class, inputCriteria, new PageSpecification(page, pageSize)).getStates();
+                for (StateAndRef<Balance> state : states) {
+                    found.put(state.getState().getData().getLinearId(), state);
+                }
+                if (states.size() < pageSize) break;
+            }
+            for (UniqueIdentifier balanceId : misses) {
+                if (found.containsKey(balanceId)) continue;
+                List<StateAndRef<Balance>> candidates = Stripes.queryAccount(this, balanceId);
+                if (candidates.isEmpty()) continue;
+                if (!candidates.get(0).getState().getData().isStriped()) {
+                    found.put(balanceId, candidates.get(0));
+                    continue;
+                }
+                BigDecimal net = netted.get(balanceId)[0].subtract(netted.get(balanceId)[1]);
+                StateAndRef<Balance> stripe = Stripes.reserve(this, candidates, candidate -> covers(candidate, net));
+                if (stripe == null) {
+                    throw new InsufficientStateException("No free stripe of account " + balanceId + " can take a net posting of " + net);
+                }
+                found.put(balanceId, stripe);
+            }
+            return found;
+        }
+
+        private static boolean covers(Balance stripe, BigDecimal net) {
+            try {
+                return stripe.toMinorUnits(net) >= -stripe.getBalanceMinor();
+            } catch (IllegalArgumentException e) {
+                // not postable in the stripe's currency; the posting fails with Amounts' message later
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.template.flows;
+import co.paralleluniverse.fibers.Suspendable;
+import com.template.contracts.BalanceContract;
+import com.template.states.Balance;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+public class BulkIssueBalance {
+    @StartableByRPC
+    public static class BulkIssueBalanceInitiator extends FlowLogic<List<UniqueIdentifier>>{
+        /**
+         * Flow Parameters
+         *      - count zero balances are issued in currency.
+         *      - the BulkIssuer splits them into transactions of at most bulkIssue.maxPerTx outputs
+         *        and notarises up to bulkIssue.parallelism of those at once.
+         */
+        private String currency;
+        private int count;
+
+        public BulkIssueBalanceInitiator(String currency, int count) throws IllegalArgumentException {
+            if (count < 1) {
+                throw new IllegalArgumentException("count must be greater than 0");
+            }
+            this.currency = currency;
+            this.count = count;
+        }
+
+        @Suspendable
+        public List<UniqueIdentifier> call() throws FlowException {
+            /**
+             * Wait for every chunk without holding a flow worker thread.
+             */
+            return await(new BulkIssueOperation(getServiceHub().cordaService(BulkIssuer.class), currency, count));
+        }
+    }
+
+    /**
+     * External operation that checkpoints cleanly while the BulkIssuer's chunk flows run.
+     */
+    private static class BulkIssueOperation implements FlowExternalAsyncOperation<List<UniqueIdentifier>> {
+        private final BulkIssuer issuer;
+        private final String currency;
+        private final int count;
+
+        BulkIssueOperation(BulkIssuer issuer, String currency, int count) {
+            this.issuer = issuer;
+            this.currency = currency;
+            this.count = count;
+        }
+
+        @NotNull
+        @Override
+        public CompletableFuture<List<UniqueIdentifier>> execute(@NotNull String deduplicationId) {
+            // the same deduplicationId when Corda re-runs the operation after a restart
+            return issuer.issue(deduplicationId, currency, count);
+        }
+    }
+
+    @InitiatingFlow
+    @StartableByService
+    public static class IssueChunk extends FlowLogic<SignedTransaction>{
+        /**
+         * Flow Parameters
+         *      - linearIds of the plain balances to issue in one transaction, all assigned to notary.
+         *      - operationId, when not null, is marked DONE in the OperationLog with the flow's result.
+         */
+        private String currency;
+        private List<UniqueIdentifier> linearIds;
+        private Party notary;
+        private String operationId;
+        private static final String FLOW = "bulk_issue";
+
+        public IssueChunk(String currency, List<UniqueIdentifier> linearIds, Party notary) {
+            this(currency, linearIds, notary, null);
+        }
+
+        public IssueChunk(String currency, List<UniqueIdentifier> linearIds, Party notary, String operationId) {
+            this.currency = currency;
+            this.linearIds = new ArrayList<>(linearIds);
+            this.notary = notary;
+            this.operationId = operationId;
+        }
+
+        @Suspendable
+        public SignedTransaction call() throws FlowException {
+            FlowMetrics metrics = getServiceHub().cordaService(FlowMetrics.class);
+            FlowMetrics.StageClock stage = metrics.start();
+            try {
+                /**
+                 * Build Transaction - one Issue command, one zero balance output per linearId.
+                 */
+                TransactionBuilder txBuilder = new TransactionBuilder(notary)
+                        .addCommand(new BalanceContract.Commands.Issue(), this.getOurIdentity().getOwningKey());
+                for (UniqueIdentifier linearId : linearIds) {
+                    txBuilder.addOutputState(new Balance(0, 0, currency, this.getOurIdentity(), linearId));
+                }
+                txBuilder.verify(getServiceHub());
+                metrics.stage(FLOW, "verify", stage);
+                SignedTransaction sTx = getServiceHub().signInitialTransaction(txBuilder);
+                metrics.stage(FLOW, "sign", stage);
+                SignedTransaction result = subFlow( new FinalityFlow(sTx, Collections.emptyList()) );
+                metrics.stage(FLOW, "finality", stage);
+                if (operationId != null) {
+                    // commits with the flow's result, so a resumed issuance never issues this chunk again
+                    getServiceHub().cordaService(OperationLog.class).done(Collections.singletonList(operationId), result.getId());
+                }
+                return result;
+            } catch (FlowException | RuntimeException e) {
+                metrics.failure(FLOW, e);
+                throw e;
+            }
+        }
+    }
+}
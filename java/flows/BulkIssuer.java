@@ -0,0 +1,180 @@
+package com.template.flows;
+import com.template.schemas.OperationSchemaV1.PersistentOperation;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Node-side pipeline for bulk account issuance.
+ *
+ * A flow can only run its subflows one after another, so BulkIssueBalance hands the work to this
+ * service instead. The new linearIds are cut into chunks of at most bulkIssue.maxPerTx (default 1000)
+ * outputs, each issued on the notary NotarySelector assigns the chunk's first linearId, by IssueChunk
+ * flows with up to bulkIssue.parallelism (default 4) in flight at once.
+ *
+ * An issuance is keyed by the caller's operation id. Its linearIds are derived from that id, and its
+ * chunks are recorded in the OperationLog before any is started, so issuing the same operation again -
+ * a BulkIssueBalance restored from its checkpoint after a restart - resumes the recorded chunks: chunks
+ * that never started are started, the others are only awaited, and no account is issued twice.
+ */
+@CordaService
+public class BulkIssuer extends SingletonSerializeAsToken {
+    private static final Logger logger = LoggerFactory.getLogger(BulkIssuer.class);
+
+    public static final int DEFAULT_MAX_PER_TX = 1000;
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    private final AppServiceHub serviceHub;
+    private final int maxPerTx;
+    private final int parallelism;
+    // guarded by this
+    private final Map<String, CompletableFuture<List<UniqueIdentifier>>> byOperationId = new HashMap<>();
+
+    public BulkIssuer(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        this.maxPerTx = serviceHub.getAppContext().getConfig().exists("bulkIssue.maxPerTx")
+                ? serviceHub.getAppContext().getConfig().getInt("bulkIssue.maxPerTx") : DEFAULT_MAX_PER_TX;
+        this.parallelism = serviceHub.getAppContext().getConfig().exists("bulkIssue.parallelism")
+                ? serviceHub.getAppContext().getConfig().getInt("bulkIssue.parallelism") : DEFAULT_PARALLELISM;
+    }
+
+    /**
+     * Issue count plain zero balances under operationId. The returned future completes with their
+     * linearIds once every chunk is notarised, or fails with the first chunk that fails.
+     */
+    public CompletableFuture<List<UniqueIdentifier>> issue(String operationId, String currency, int count) {
+        CompletableFuture<List<UniqueIdentifier>> result = new CompletableFuture<>();
+        synchronized (this) {
+            CompletableFuture<List<UniqueIdentifier>> submitted = byOperationId.putIfAbsent(operationId, result);
+            if (submitted != null) return submitted;
+        }
+        result.whenComplete((linearIds, error) -> {
+            synchronized (BulkIssuer.this) { byOperationId.remove(operationId); }
+        });
+
+        List<UniqueIdentifier> linearIds = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            UUID id = UUID.nameUUIDFromBytes((operationId + "/" + i).getBytes(StandardCharsets.UTF_8));
+            linearIds.add(new UniqueIdentifier(null, id));
+        }
+        OperationLog operations = serviceHub.cordaService(OperationLog.class);
+        Queue<Chunk> toStart = new ConcurrentLinkedQueue<>();
+        List<CompletableFuture<SecureHash>> outcomes = new ArrayList<>();
+        try {
+            List<PersistentOperation> recorded = operations.findByPrefix(operationId + "/");
+            if (recorded.isEmpty()) {
+                NotarySelector notarySelector = serviceHub.cordaService(NotarySelector.class);
+                Map<String, String> requests = new LinkedHashMap<>();
+                for (int from = 0, index = 0; from < count; from += maxPerTx, index++) {
+                    Chunk chunk = new Chunk(operationId + "/" + index, currency, notarySelector.forNewState(linearIds.get(from)),
+                            from, Math.min(from + maxPerTx, count));
+                    requests.put(chunk.operationId, chunk.request());
+                    toStart.add(chunk);
+                }
+                operations.queued(requests);
+            } else {
+                for (PersistentOperation operation : recorded) {
+                    switch (operation.getStatus()) {
+                        case QUEUED:
+                            toStart.add(Chunk.parse(operation.getOperationId(), operation.getRequest(), serviceHub));
+                            break;
+                        case STARTED:
+                            // the chunk's flow may already have issued it, only ever wait for that flow's outcome
+                            outcomes.add(operations.outcome(operation.getOperationId()));
+                            break;
+                        case FAILED:
+                            throw new IllegalStateException("Bulk issuance chunk " + operation.getOperationId()
+                                    + " failed: " + operation.getError());
+                        default:
+                            break;
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        toStart.forEach(chunk -> outcomes.add(chunk.outcome));
+        outcomes.forEach(outcome -> outcome.whenComplete((txId, error) -> {
+            if (error != null) result.completeExceptionally(error);
+        }));
+        CompletableFuture.allOf(outcomes.toArray(new CompletableFuture[0])).thenRun(() -> result.complete(linearIds));
+        for (int i = 0, chunks = toStart.size(); i < Math.min(parallelism, chunks); i++) {
+            startNext(toStart, result, linearIds, operations);
+        }
+        return result;
+    }
+
+    /**
+     * Start the next queued chunk; each completion starts the one after it, keeping parallelism in flight.
+     */
+    private void startNext(Queue<Chunk> chunks, CompletableFuture<List<UniqueIdentifier>> result,
+                           List<UniqueIdentifier> linearIds, OperationLog operations) {
+        Chunk chunk = chunks.poll();
+        if (chunk == null || result.isDone()) return;
+        List<String> operationIds = Collections.singletonList(chunk.operationId);
+        try {
+            // marked before the flow exists, so a restart can never leave a running flow behind a QUEUED chunk
+            operations.started(operationIds);
+            serviceHub.startFlow(new BulkIssueBalance.IssueChunk(chunk.currency, linearIds.subList(chunk.from, chunk.to),
+                    chunk.notary, chunk.operationId)).getReturnValue().toCompletableFuture().whenComplete((tx, error) -> {
+                if (error != null) {
+                    logger.warn("Bulk issuance chunk failed", error);
+                    operations.failed(operationIds, error);
+                    chunk.outcome.completeExceptionally(error);
+                } else {
+                    chunk.outcome.complete(tx.getId());
+                    startNext(chunks, result, linearIds, operations);
+                }
+            });
+        } catch (Exception e) {
+            operations.failed(operationIds, e);
+            chunk.outcome.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * linearIds[from, to) of an issuance, issued in one transaction on notary.
+     */
+    private static class Chunk {
+        final String operationId;
+        final String currency;
+        final Party notary;
+        final int from, to;
+        final CompletableFuture<SecureHash> outcome = new CompletableFuture<>();
+
+        Chunk(String operationId, String currency, Party notary, int from, int to) {
+            this.operationId = operationId;
+            this.currency = currency;
+            this.notary = notary;
+            this.from = from;
+            this.to = to;
+        }
+
+        // the X500 name goes last, it contains commas
+        String request() {
+            return "ISSUE|" + currency + "|" + from + "|" + to + "|" + notary.getName();
+        }
+
+        static Chunk parse(String operationId, String request, AppServiceHub serviceHub) {
+            String[] fields = request.split("\\|", 5);
+            Party notary = serviceHub.getNetworkMapCache().getNotary(CordaX500Name.parse(fields[4]));
+            if (notary == null) {
+                throw new IllegalStateException("Notary " + fields[4] + " of bulk issuance chunk " + operationId + " is not on the network map");
+            }
+            return new Chunk(operationId, fields[1], notary, Integer.parseInt(fields[2]), Integer.parseInt(fields[3]));
+        }
+    }
+}
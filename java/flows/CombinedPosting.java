@@ -0,0 +1,55 @@
+package com.template.flows;
+import co.paralleluniverse.fibers.Suspendable;
+import com.template.flows.BatchPosting.Posting;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.*;
+import org.jetbrains.annotations.NotNull;
+
+import java.math.BigDecimal;
+import java.util.concurrent.CompletableFuture;
+
+public class CombinedPosting {
+    @StartableByRPC
+    public static class CombinedPostingInitiator extends FlowLogic<SecureHash>{
+        /**
+         * Flow Parameters
+         *      - balanceId, type and amount describe a single deposit or withdrawal.
+         *      - the posting is handed to the PostingCombiner, which nets it with other postings
+         *        for the same balance and settles them together.
+         */
+        private Posting posting;
+
+        public CombinedPostingInitiator(UniqueIdentifier balanceId, Posting.Type type, BigDecimal amount) throws IllegalArgumentException {
+            this.posting = new Posting(balanceId, type, amount);
+        }
+
+        @Suspendable
+        public SecureHash call() throws FlowException {
+            /**
+             * Wait for the combined transaction without holding a flow worker thread.
+             */
+            return await(new CombineOperation(getServiceHub().cordaService(PostingCombiner.class), posting));
+        }
+    }
+
+    /**
+     * External operation that checkpoints cleanly while the combiner settles the posting.
+     */
+    private static class CombineOperation implements FlowExternalAsyncOperation<SecureHash> {
+        private final PostingCombiner combiner;
+        private final Posting posting;
+
+        CombineOperation(PostingCombiner combiner, Posting posting) {
+            this.combiner = combiner;
+            this.posting = posting;
+        }
+
+        @NotNull
+        @Override
+        public CompletableFuture<SecureHash> execute(@NotNull String deduplicationId) {
+            // the same deduplicationId when Corda re-runs the operation after a restart
+            return combiner.submit(deduplicationId, posting);
+        }
+    }
+}
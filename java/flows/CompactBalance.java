@@ -0,0 +1,179 @@
+package com.template.flows;
+import co.paralleluniverse.fibers.Suspendable;
+import com.template.contracts.BalanceContract;
+import com.template.schemas.OperationSchemaV1.PersistentOperation;
+import com.template.states.Balance;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.node.ServiceHub;
+import net.corda.core.node.services.StatesNotAvailableException;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.utilities.NonEmptySet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+public class CompactBalance {
+    private static final Logger logger = LoggerFactory.getLogger(CompactBalance.class);
+    // compact once a chain is this long, unless the cordapp config sets compaction.chainLength
+    public static final int DEFAULT_CHAIN_LENGTH = 1000;
+    private static final String OPERATION_PREFIX = "compaction:";
+
+    @InitiatingFlow
+    @StartableByRPC
+    @SchedulableFlow
+    public static class CompactBalanceInitiator extends FlowLogic<SignedTransaction>{
+        /**
+         * Flow Parameters
+         *      - ref is the balance state to compact; the node schedules this every
+         *        Balance.COMPACTION_CHECK_INTERVAL links and the flow only compacts chains of at least
+         *        compaction.chainLength (default 1000) transactions.
+         *      - started over RPC with a linearId, the current state is compacted whatever its chain length.
+         *      - started over RPC with the id of a Compact transaction, the balance it consumed is re-issued.
+         *        This is the recovery path for a compaction whose flow failed between its two transactions.
+         */
+        private StateRef ref;
+        private UniqueIdentifier linearId;
+        private SecureHash compacted;
+
+        public CompactBalanceInitiator(StateRef ref) { this.ref = ref; }
+
+        public CompactBalanceInitiator(UniqueIdentifier linearId) { this.linearId = linearId; }
+
+        public CompactBalanceInitiator(SecureHash compacted) { this.compacted = compacted; }
+
+        @Suspendable
+        public SignedTransaction call() throws FlowException {
+            if (compacted != null) return recover();
+            /**
+             * Input State - the balance must still be unconsumed; a posting that got there first has simply
+             *               moved the chain on, and the next check will come round again.
+             */
+            QueryCriteria criteria = ref != null
+                    ? new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED).withStateRefs(Collections.singletonList(ref))
+                    : new QueryCriteria.LinearStateQueryCriteria().withUuid(Collections.singletonList(linearId.getId()))
+                            .withStatus(Vault.StateStatus.UNCONSUMED);
+            List<StateAndRef<Balance>> states = getServiceHub().getVaultService().queryBy(Balance.class, criteria).getStates();
+            if (states.isEmpty()) {
+                if (ref != null) return null;
+                throw new InsufficientStateException("No unconsumed balance found for " + linearId);
+            }
+            StateAndRef<Balance> current = states.get(0);
+            Balance balance = current.getState().getData();
+            if (ref != null && balance.getChainLength() < threshold()) return null;
+            try {
+                getServiceHub().getVaultService().softLockReserve(getRunId().getUuid(), NonEmptySet.of(current.getRef()));
+            } catch (StatesNotAvailableException e) {
+                // a posting holds the stripe; it will be checked again further down the chain
+                if (ref != null) return null;
+                throw e;
+            }
+            /**
+             * Both transactions stay on the notary the balance was assigned.
+             */
+            final Party notary = current.getState().getNotary();
+            /**
+             * Compact - consume the balance with no output, ending its chain.
+             *         - the compaction is recorded as STARTED in the OperationLog before the Compact is
+             *           notarised, and the record commits at that suspension. Until the Reissue is recorded
+             *           the account has no unconsumed state; postings that find it empty see the record
+             *           and wait for the Reissue (see Stripes.awaitCompaction).
+             */
+            TransactionBuilder compactBuilder = new TransactionBuilder(notary)
+                    .addInputState(current)
+                    .addCommand(new BalanceContract.Commands.Compact(), this.getOurIdentity().getOwningKey());
+            compactBuilder.verify(getServiceHub());
+            SignedTransaction compactTx = getServiceHub().signInitialTransaction(compactBuilder);
+            OperationLog operations = getServiceHub().cordaService(OperationLog.class);
+            String operationId = operationId(balance.getAccountId(), current.getRef());
+            operations.queued(Collections.singletonMap(operationId, compactTx.getId().toString()));
+            operations.started(Collections.singletonList(operationId));
+            subFlow( new FinalityFlow(compactTx, Collections.emptyList()) );
+            return reissue(compactTx.getId(), balance, notary, operationId);
+        }
+
+        /**
+         * Reissue - the same linearId, stripe and totals as a fresh state with no inputs. The flow is
+         *           checkpointed after the Compact, so a restart resumes here rather than losing the balance.
+         *           Signed by the issuer and the dedicated compaction key, which nothing else uses.
+         */
+        @Suspendable
+        private SignedTransaction reissue(SecureHash compactId, Balance balance, Party notary, String operationId) throws FlowException {
+            PublicKey compactionKey = getServiceHub().cordaService(CompactionKey.class).get();
+            TransactionBuilder reissueBuilder = new TransactionBuilder(notary)
+                    .addOutputState(balance.reissued())
+                    .addCommand(new BalanceContract.Commands.Reissue(compactId, compactionKey),
+                            this.getOurIdentity().getOwningKey(), compactionKey);
+            reissueBuilder.verify(getServiceHub());
+            SignedTransaction reissued = subFlow( new FinalityFlow(getServiceHub().signInitialTransaction(reissueBuilder,
+                    Arrays.asList(this.getOurIdentity().getOwningKey(), compactionKey)), Collections.emptyList()) );
+            getServiceHub().cordaService(OperationLog.class).done(Collections.singletonList(operationId), reissued.getId());
+            logger.info("Compacted {} after {} transactions", balance.getLinearId(), balance.getChainLength());
+            return reissued;
+        }
+
+        /**
+         * Recovery - re-issue the balance a Compact transaction consumed. Only for a compaction whose flow
+         *            has failed (the flow hospital shows it, and postings on the account fail with this
+         *            transaction id); a compaction that is still running finishes the Reissue itself.
+         */
+        @Suspendable
+        private SignedTransaction recover() throws FlowException {
+            SignedTransaction compactTx = getServiceHub().getValidatedTransactions().getTransaction(compacted);
+            if (compactTx == null) {
+                throw new FlowException("Unknown transaction " + compacted);
+            }
+            if (compactTx.getTx().getCommands().isEmpty()
+                    || !(compactTx.getTx().getCommands().get(0).getValue() instanceof BalanceContract.Commands.Compact)) {
+                throw new FlowException("Transaction " + compacted + " is not a compaction");
+            }
+            StateAndRef<Balance> input = getServiceHub().toStateAndRef(compactTx.getTx().getInputs().get(0));
+            Balance balance = input.getState().getData();
+            String operationId = operationId(balance.getAccountId(), input.getRef());
+            Optional<PersistentOperation> operation = getServiceHub().cordaService(OperationLog.class).find(operationId);
+            if (operation.isPresent() && operation.get().getStatus() == PersistentOperation.Status.DONE) {
+                throw new FlowException("Balance " + balance.getLinearId() + " was already re-issued in " + operation.get().getTransactionId());
+            }
+            QueryCriteria reissuedCriteria = new QueryCriteria.LinearStateQueryCriteria()
+                    .withUuid(Collections.singletonList(balance.getLinearId().getId()))
+                    .withStatus(Vault.StateStatus.UNCONSUMED);
+            if (!getServiceHub().getVaultService().queryBy(Balance.class, reissuedCriteria).getStates().isEmpty()) {
+                throw new FlowException("Balance " + balance.getLinearId() + " was already re-issued");
+            }
+            return reissue(compacted, balance, input.getState().getNotary(), operationId);
+        }
+
+        private int threshold() {
+            return getServiceHub().getAppContext().getConfig().exists("compaction.chainLength")
+                    ? getServiceHub().getAppContext().getConfig().getInt("compaction.chainLength") : DEFAULT_CHAIN_LENGTH;
+        }
+    }
+
+    /**
+     * The OperationLog id of the compaction of ref; prefixed by the account so postings can find it.
+     */
+    static String operationId(UniqueIdentifier accountId, StateRef ref) {
+        return OPERATION_PREFIX + accountId.getId() + ":" + ref;
+    }
+
+    /**
+     * The most recent compaction of accountId that has not re-issued its balance yet, if any.
+     */
+    static Optional<PersistentOperation> running(ServiceHub serviceHub, UniqueIdentifier accountId) {
+        return serviceHub.cordaService(OperationLog.class).findByPrefix(OPERATION_PREFIX + accountId.getId() + ":").stream()
+                .filter(operation -> operation.getStatus() == PersistentOperation.Status.STARTED)
+                .max(Comparator.comparing(PersistentOperation::getUpdatedAt));
+    }
+}
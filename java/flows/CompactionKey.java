@@ -0,0 +1,38 @@
+package com.template.flows;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+
+import java.nio.charset.StandardCharsets;
+import java.security.PublicKey;
+import java.util.Iterator;
+import java.util.UUID;
+
+/**
+ * The node's dedicated compaction key.
+ *
+ * BalanceContract only accepts a Reissue signed by a key other than the issuer's identity key, because a
+ * re-issue has no inputs and its totals cannot be checked against the chain it replaces. This is that key:
+ * generated once, registered under a fixed external id so the node finds the same key after a restart, and
+ * used by CompactBalance and nothing else. Publish it to counterparties that accept re-issued balances.
+ */
+@CordaService
+public class CompactionKey extends SingletonSerializeAsToken {
+    private static final UUID EXTERNAL_ID = UUID.nameUUIDFromBytes("com.template.compaction".getBytes(StandardCharsets.UTF_8));
+
+    private final AppServiceHub serviceHub;
+    // guarded by this
+    private PublicKey key = null;
+
+    public CompactionKey(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+    }
+
+    public synchronized PublicKey get() {
+        if (key == null) {
+            Iterator<PublicKey> registered = serviceHub.getIdentityService().publicKeysForExternalId(EXTERNAL_ID).iterator();
+            key = registered.hasNext() ? registered.next() : serviceHub.getKeyManagementService().freshKey(EXTERNAL_ID);
+        }
+        return key;
+    }
+}
@@ -0,0 +1,94 @@
+package com.template.flows;
+import co.paralleluniverse.fibers.Suspendable;
+import com.template.contracts.BalanceContract;
+import com.template.states.Balance;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.transactions.WireTransaction;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+public class ConsolidateStripes {
+    @InitiatingFlow
+    @StartableByRPC
+    public static class ConsolidateStripesInitiator extends FlowLogic<SignedTransaction>{
+        /**
+         * Flow Parameters
+         *      - accountId is the logical id shared by the stripes.
+         *      - every free stripe with funds is drained into the stripe holding the largest balance.
+         */
+        private UniqueIdentifier accountId;
+
+        public ConsolidateStripesInitiator(UniqueIdentifier accountId) { this.accountId = accountId; }
+
+        @Suspendable
+        public SignedTransaction call() throws FlowException {
+            /**
+             * Input States - the free stripes of the account, soft-locked so concurrent deposits move to other stripes.
+             */
+            List<StateAndRef<Balance>> stripes = new ArrayList<>();
+            for (StateAndRef<Balance> candidate : Stripes.queryAccount(this, accountId)) {
+                if (candidate.getState().getData().isStriped() &&
+                        Stripes.reserve(this, Collections.singletonList(candidate), stripe -> true) != null) {
+                    stripes.add(candidate);
+                }
+            }
+            stripes.sort(Comparator.comparingLong(stripe -> -stripe.getState().getData().getBalanceMinor()));
+            if (stripes.size() < 2) {
+                throw new InsufficientStateException("Not enough free stripes to consolidate account " + accountId);
+            }
+            /**
+             * Output States - donors keep moneyOut and drop moneyIn to it (balance 0),
+             *               - the receiver's moneyIn grows by everything the donors gave up.
+             */
+            StateAndRef<Balance> receiver = stripes.get(0);
+            /**
+             * One transaction has one notary. Stripes are issued together, but a Transfer can move a single
+             * stripe to another notary, so donors on a different notary are moved to the receiver's first.
+             */
+            final Party notary = receiver.getState().getNotary();
+            TransactionBuilder txBuilder = new TransactionBuilder(notary);
+            long moved = 0;
+            for (StateAndRef<Balance> donor : stripes.subList(1, stripes.size())) {
+                if (donor.getState().getData().getBalanceMinor() <= 0) continue;
+                if (!donor.getState().getNotary().equals(notary)) {
+                    donor = subFlow(new NotaryChangeFlow<>(donor, notary));
+                    // the new state is not covered by the soft lock taken on the old one
+                    if (Stripes.reserve(this, Collections.singletonList(donor), stripe -> true) == null) continue;
+                }
+                Balance donorBalance = donor.getState().getData();
+                moved = Amounts.add(moved, donorBalance.getBalanceMinor());
+                txBuilder.addInputState(donor).addOutputState(donorBalance.withTotals(donorBalance.getMoneyOutMinor(), donorBalance.getMoneyOutMinor()));
+            }
+            if (moved == 0) {
+                throw new FlowException("No funds to consolidate for account " + accountId);
+            }
+            Balance receiverBalance = receiver.getState().getData();
+            txBuilder.addInputState(receiver)
+                    .addOutputState(receiverBalance.withTotals(Amounts.add(receiverBalance.getMoneyInMinor(), moved), receiverBalance.getMoneyOutMinor()))
+                    .addCommand(new BalanceContract.Commands.Consolidate(), getOurIdentity().getOwningKey());
+
+            txBuilder.verify(getServiceHub());
+            SignedTransaction sTx = getServiceHub().signInitialTransaction(txBuilder);
+            return subFlow(new FinalityFlow(sTx, Collections.emptyList()));
+        }
+    }
+
+    /**
+     * The stripe that received the consolidated funds.
+     */
+    public static StateAndRef<Balance> receiver(SignedTransaction consolidation) {
+        WireTransaction tx = consolidation.getTx();
+        int best = 0;
+        for (int i = 1; i < tx.getOutputs().size(); i++) {
+            if (((Balance) tx.getOutput(i)).getBalanceMinor() > ((Balance) tx.getOutput(best)).getBalanceMinor()) best = i;
+        }
+        return tx.outRef(best);
+    }
+}
@@ -0,0 +1,205 @@
+package com.template.flows;
+import com.template.states.Balance;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.messaging.DataFeed;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.node.services.ServiceLifecycleEvent;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rx.Subscription;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Running per-currency totals over the unconsumed Balance states on this node.
+ *
+ * Built from one BalanceScan of the vault once the node has started, then kept current by subtracting
+ * each consumed state and adding each produced one as vault updates arrive, so reading the totals costs
+ * O(currencies) whatever the number of accounts. Updates that arrive during the scan are held back
+ * and replayed against the set of states the scan counted, so no state is counted twice or subtracted
+ * without having been added; the set is dropped once the replay is done. If the feed fails, the totals
+ * are reported unavailable and rebuilt from a fresh scan. A currency whose totals would overflow a long
+ * of minor units is reported unavailable on its own rather than wrapped round, until the next rebuild.
+ */
+@CordaService
+public class CurrencyTotals extends SingletonSerializeAsToken {
+    private static final Logger logger = LoggerFactory.getLogger(CurrencyTotals.class);
+    private static final long RETRY_SECONDS = 5;
+
+    private final AppServiceHub serviceHub;
+    // guarded by this
+    private final Map<String, long[]> totals = new TreeMap<>();
+    // currencies whose totals no longer fit a long of minor units, unavailable until the next rebuild
+    private final Set<String> overflowed = new HashSet<>();
+    private List<Vault.Update<Balance>> pendingUpdates = null;
+    private Set<StateRef> counted = null;
+    private boolean ready = false;
+    private Subscription subscription;
+    private long generation = 0;
+    private final ScheduledExecutorService bootstrapper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "currency-totals");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Totals of one currency; amounts in its minor unit. When available is false the amounts overflowed
+     * and are 0.
+     */
+    @CordaSerializable
+    public static class Totals {
+        private final String currency;
+        private final long moneyInMinor;
+        private final long moneyOutMinor;
+        private final long states;
+        private final boolean available;
+
+        public Totals(String currency, long moneyInMinor, long moneyOutMinor, long states) {
+            this(currency, moneyInMinor, moneyOutMinor, states, true);
+        }
+
+        public Totals(String currency, long moneyInMinor, long moneyOutMinor, long states, boolean available) {
+            this.currency = currency;
+            this.moneyInMinor = moneyInMinor;
+            this.moneyOutMinor = moneyOutMinor;
+            this.states = states;
+            this.available = available;
+        }
+
+        public String getCurrency() { return currency; }
+
+        public long getMoneyInMinor() { return moneyInMinor; }
+
+        public long getMoneyOutMinor() { return moneyOutMinor; }
+
+        public long getBalanceMinor() { return moneyInMinor - moneyOutMinor; }
+
+        public long getStates() { return states; }
+
+        public boolean isAvailable() { return available; }
+    }
+
+    public CurrencyTotals(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        // the vault can only be queried from services once the node is fully started
+        serviceHub.register(AppServiceHub.SERVICE_PRIORITY_NORMAL, event -> {
+            if (event == ServiceLifecycleEvent.STATE_MACHINE_STARTED) bootstrapper.execute(this::bootstrap);
+        });
+    }
+
+    private void bootstrap() {
+        QueryCriteria criteria = new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED)
+                .withRelevancyStatus(Vault.RelevancyStatus.RELEVANT);
+        final long current;
+        synchronized (this) {
+            current = ++generation;
+            totals.clear();
+            overflowed.clear();
+            pendingUpdates = new ArrayList<>();
+            counted = new HashSet<>();
+        }
+        try {
+            DataFeed<Vault.Page<Balance>, Vault.Update<Balance>> feed = serviceHub.getVaultService()
+                    .trackBy(Balance.class, criteria, BalanceScan.firstPage(), BalanceScan.order());
+            Subscription newSubscription = feed.getUpdates().subscribe(update -> onUpdate(current, update),
+                    error -> failed(current, error));
+            synchronized (this) {
+                subscription = newSubscription;
+            }
+            BalanceScan.scan(feed.getSnapshot(), criteria,
+                    (pageCriteria, paging, sort) -> serviceHub.getVaultService().queryBy(Balance.class, pageCriteria, paging, sort),
+                    page -> scan(current, page));
+            synchronized (this) {
+                if (generation != current) return;
+                pendingUpdates.forEach(this::replay);
+                pendingUpdates = null;
+                counted = null;
+                ready = true;
+                logger.info("Currency totals ready for {} currencies", totals.size());
+            }
+        } catch (RuntimeException e) {
+            failed(current, e);
+        }
+    }
+
+    /**
+     * Report the totals unavailable and rebuild them, unless a newer bootstrap has already taken over.
+     */
+    private void failed(long fromGeneration, Throwable error) {
+        synchronized (this) {
+            if (generation != fromGeneration) return;
+            generation++;
+            ready = false;
+            if (subscription != null) subscription.unsubscribe();
+            subscription = null;
+        }
+        logger.error("Currency totals lost their vault feed and will be rebuilt", error);
+        bootstrapper.schedule(this::bootstrap, RETRY_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private synchronized boolean scan(long fromGeneration, List<StateAndRef<Balance>> page) {
+        if (generation != fromGeneration) return false;
+        for (StateAndRef<Balance> stateAndRef : page) {
+            if (counted.add(stateAndRef.getRef())) add(stateAndRef.getState().getData(), 1);
+        }
+        return true;
+    }
+
+    private synchronized void onUpdate(long fromGeneration, Vault.Update<Balance> update) {
+        if (generation != fromGeneration) return;
+        if (pendingUpdates != null) {
+            pendingUpdates.add(update);
+            return;
+        }
+        update.getConsumed().forEach(consumed -> add(consumed.getState().getData(), -1));
+        update.getProduced().forEach(produced -> add(produced.getState().getData(), 1));
+    }
+
+    // guarded by this
+    private void replay(Vault.Update<Balance> update) {
+        for (StateAndRef<Balance> consumed : update.getConsumed()) {
+            if (counted.remove(consumed.getRef())) add(consumed.getState().getData(), -1);
+        }
+        for (StateAndRef<Balance> produced : update.getProduced()) {
+            if (counted.add(produced.getRef())) add(produced.getState().getData(), 1);
+        }
+    }
+
+    // guarded by this
+    private void add(Balance balance, int sign) {
+        long[] sums = totals.computeIfAbsent(balance.getCurrency(), currency -> new long[3]);
+        sums[2] += sign;
+        if (overflowed.contains(balance.getCurrency())) return;
+        try {
+            long moneyIn = Math.addExact(sums[0], Math.multiplyExact(sign, balance.getMoneyInMinor()));
+            long moneyOut = Math.addExact(sums[1], Math.multiplyExact(sign, balance.getMoneyOutMinor()));
+            sums[0] = moneyIn;
+            sums[1] = moneyOut;
+        } catch (ArithmeticException e) {
+            overflowed.add(balance.getCurrency());
+            logger.warn("{} totals no longer fit a long of minor units and are unavailable until the next rebuild", balance.getCurrency());
+        }
+    }
+
+    public synchronized boolean isReady() { return ready; }
+
+    /**
+     * The current totals, one per currency in code order; overflowed currencies are marked unavailable.
+     */
+    public synchronized List<Totals> snapshot() {
+        List<Totals> snapshot = new ArrayList<>(totals.size());
+        totals.forEach((currency, sums) -> snapshot.add(overflowed.contains(currency)
+                ? new Totals(currency, 0, 0, sums[2], false)
+                : new Totals(currency, sums[0], sums[1], sums[2])));
+        return snapshot;
+    }
+}
@@ -1,17 +1,17 @@
 package com.template.flows;
+import co.paralleluniverse.fibers.Suspendable;
 import com.template.contracts.BalanceContract;
 import com.template.states.Balance;
 import net.corda.core.contracts.StateAndRef;
 import net.corda.core.contracts.UniqueIdentifier;
 import net.corda.core.flows.*;
 import net.corda.core.identity.Party;
-import net.corda.core.node.services.Vault;
-import net.corda.core.node.services.vault.QueryCriteria;
 import net.corda.core.transactions.SignedTransaction;
 import net.corda.core.transactions.TransactionBuilder;
 
-import java.util.Arrays;
-import java.util.UUID;
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.List;
 public class Deposit {
     @InitiatingFlow
     @StartableByRPC
@@ -21,55 +21,75 @@ public class Deposit {
          *      - The only parameters needed to deposit are amount and linearId.
          *      - issuer, currency, and moneyOut all stay the same.
          */
-        private UniqueIdentifier balanceId; //tells us which account to deposit into
-        private double amount;
+        private UniqueIdentifier balanceId; //tells us which account (plain balance or striped account) to use
+        private BigDecimal amount;
+        private static final String FLOW = "deposit";
 
-        public DepositInitiator(UniqueIdentifier balanceId, double amount) throws IllegalArgumentException {
-            if (!(amount > 0)) {
+        public DepositInitiator(UniqueIdentifier balanceId, BigDecimal amount) throws IllegalArgumentException {
+            if (amount.signum() <= 0) {
                 throw new IllegalArgumentException("amount must be greater than 0");
             }
             this.balanceId = balanceId;
             this.amount = amount;
         }
 
+        @Suspendable
         public SignedTransaction call() throws FlowException {
+            FlowMetrics metrics = getServiceHub().cordaService(FlowMetrics.class);
+            try {
+                return deposit(metrics);
+            } catch (FlowException | RuntimeException e) {
+                metrics.failure(FLOW, e);
+                throw e;
+            }
+        }
+
+        /**
+         * Each stage is timed into FlowMetrics as "deposit.<stage>".
+         */
+        @Suspendable
+        private SignedTransaction deposit(FlowMetrics metrics) throws FlowException {
+            FlowMetrics.StageClock stage = metrics.start();
             /**
-             * In transactions with multiple parties, we need a notary to reach consenus.
-             * There are two methods
-             *          1. Use the first Notary on the network
-             *          2. Specify a notary to use
-             * Second option is better for a non-test environment
-             */
-            final Party notary = getServiceHub().getNetworkMapCache().getNotaryIdentities().get(0); // METHOD 1
-            //final Party notary = getServiceHub().getNetworkMapCache().getNotary(CordaX500Name.parse("O=Notary,L=London,C=GB")); // METHOD 2
-            /**
-             * QueryCriteria - query the vault by UniqueIdentifier for unconsumed state
-             *               - this will give us the balance specified by the parameters, or originalBalance
+             * Lookup - resolve the unconsumed state by UniqueIdentifier from the BalanceIndex,
+             *          querying the vault only when the index misses
+             *        - this will give us the balance specified by the parameters, or originalBalance
+             *        - for a striped account we get its free stripes and deposit into one of them.
              */
-            String targetBalance = balanceId.toString();
-            QueryCriteria.LinearStateQueryCriteria inputCriteria = new QueryCriteria.LinearStateQueryCriteria()
-                    .withUuid(Arrays.asList(UUID.fromString(targetBalance)))
-                    .withStatus(Vault.StateStatus.UNCONSUMED)
-                    .withRelevancyStatus(Vault.RelevancyStatus.RELEVANT);
+            List<StateAndRef<Balance>> candidates = Stripes.queryAccount(this, balanceId);
+            if (candidates.isEmpty()) {
+                throw new InsufficientStateException("No unconsumed balance found for " + balanceId);
+            }
             /**
              * Input State - using inputCriteria, we retrieve the balance with the correct linearId
              *             - we want to consume this state and output a new state with the deposited balance.
              */
-            StateAndRef balanceStateAndRef = getServiceHub().getVaultService().queryBy(Balance.class, inputCriteria).getStates().get(0);
-            Balance originalBalance = (Balance) balanceStateAndRef.getState().getData();
+            StateAndRef<Balance> balanceStateAndRef = candidates.get(0).getState().getData().isStriped()
+                    ? Stripes.reserve(this, candidates, stripe -> true)
+                    : candidates.get(0);
+            if (balanceStateAndRef == null) {
+                throw new InsufficientStateException("Every stripe of account " + balanceId + " is in use");
+            }
+            metrics.stage(FLOW, "vault_query", stage);
+            Balance originalBalance = balanceStateAndRef.getState().getData();
+            /**
+             * In transactions with multiple parties, we need a notary to reach consenus.
+             * The transaction stays on the notary the input balance was issued on (see NotarySelector),
+             * so no notary change is ever needed.
+             */
+            final Party notary = balanceStateAndRef.getState().getNotary();
+            metrics.stage(FLOW, "notary", stage);
             /**
              *  Output State - newMoneyIn should be oldMoneyIn plus this.amount
              *               - moneyOut, currency, issuer, linearId should all stay the same.
              */
-            double newMoneyIn = originalBalance.getMoneyIn() + amount;
-            Balance output = new Balance(newMoneyIn, originalBalance.getMoneyOut(),
-                                        originalBalance.getCurrency(), originalBalance.getIssuer(),
-                                        originalBalance.getLinearId());
+            long newMoneyIn = Amounts.add(originalBalance.getMoneyInMinor(), Amounts.minorUnits(originalBalance, amount));
+            Balance output = originalBalance.withTotals(newMoneyIn, originalBalance.getMoneyOutMinor());
             /**
              * Build Transaction - specify notary, input/output states, and corresponding contract command.
              *                   - command requires an owning key. we will use this node's (our) key.
              */
-            TransactionBuilder txBuilder = newTransactionBuilder(notary)
+            TransactionBuilder txBuilder = new TransactionBuilder(notary)
                     .addInputState(balanceStateAndRef)
                     .addOutputState(output)
                     .addCommand(new BalanceContract.Commands.Deposit(),
@@ -78,14 +98,18 @@ public class Deposit {
              * Verify transaction
              */
             txBuilder.verify(getServiceHub());
+            metrics.stage(FLOW, "verify", stage);
             /**
              * Sign transaction
              */
             SignedTransaction sTx = getServiceHub().signInitialTransaction(txBuilder);
+            metrics.stage(FLOW, "sign", stage);
             /**
              * Notarise transaction and record states in ledger
              */
-            return subFlow( new FinalityFlow(sTx, Collections.emptyList()) );
+            SignedTransaction result = subFlow( new FinalityFlow(sTx, Collections.emptyList()) );
+            metrics.stage(FLOW, "finality", stage);
+            return result;
             /**
              * CordaDocs - FinalityFlow -
              *          Verifies the given transaction, then sends it to the named notary.
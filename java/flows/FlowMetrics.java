@@ -0,0 +1,152 @@
+package com.template.flows;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import net.corda.core.contracts.TransactionVerificationException;
+import net.corda.core.flows.NotaryException;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.node.services.StatesNotAvailableException;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-stage timings and failure counts of the balance flows.
+ *
+ * Flows take a {@link StageClock} from {@link #start} and call {@link #stage} at the end of each
+ * stage (notary lookup, vault query, verify, sign, finality), and {@link #failure} when they throw. Timers are named "flow.stage", counters
+ * "flow.failures.cause", where cause is one of insufficient_state, notary_conflict,
+ * contract_rejection or other. The registry is published over JMX (and so through the node's
+ * Jolokia agent) under the com.template.flows domain, and {@link GetFlowMetrics} returns a snapshot
+ * over RPC for the webserver.
+ */
+@CordaService
+public class FlowMetrics extends SingletonSerializeAsToken {
+    private final MetricRegistry registry = new MetricRegistry();
+
+    public FlowMetrics(AppServiceHub serviceHub) {
+        JmxReporter.forRegistry(registry).inDomain("com.template.flows").build().start();
+    }
+
+    /**
+     * A clock for the first stage of a flow.
+     */
+    public StageClock start() {
+        return new StageClock();
+    }
+
+    /**
+     * Record the stage the clock has been timing, then restart the clock for the next stage.
+     * A stage whose span includes a restore from a checkpoint is not recorded.
+     */
+    public void stage(String flow, String stage, StageClock clock) {
+        long now = System.nanoTime();
+        if (clock.live) {
+            registry.timer(flow + "." + stage).update(now - clock.startNanos, TimeUnit.NANOSECONDS);
+        }
+        clock.restart(now);
+    }
+
+    public void failure(String flow, Throwable error) {
+        registry.counter(flow + ".failures." + cause(error)).inc();
+    }
+
+    static String cause(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof NotaryException) return "notary_conflict";
+            if (cause instanceof TransactionVerificationException) return "contract_rejection";
+            if (cause instanceof StatesNotAvailableException || cause instanceof InsufficientStateException) return "insufficient_state";
+        }
+        return "other";
+    }
+
+    public Snapshot snapshot() {
+        Map<String, StageTiming> stages = new HashMap<>();
+        for (Map.Entry<String, Timer> entry : registry.getTimers().entrySet()) {
+            com.codahale.metrics.Snapshot timings = entry.getValue().getSnapshot();
+            stages.put(entry.getKey(), new StageTiming(entry.getValue().getCount(), timings.getMean(),
+                    timings.getMedian(), timings.get99thPercentile(), timings.getMax()));
+        }
+        Map<String, Long> failures = new HashMap<>();
+        for (Map.Entry<String, Counter> entry : registry.getCounters().entrySet()) {
+            failures.put(entry.getKey(), entry.getValue().getCount());
+        }
+        return new Snapshot(stages, failures);
+    }
+
+    /**
+     * Start of the stage a flow is in, kept in the flow's checkpoint with the rest of its locals.
+     *
+     * A flow restored from a checkpoint, after a node restart or a flow hospital retry, carries the
+     * clock over from before the restore: its start may come from another JVM's nanoTime, and its span
+     * would include the downtime or the retry backoff. Checkpoints leave out the transient live flag,
+     * so a restored clock reads as not live; the stage it was timing is dropped and the clock starts
+     * afresh for the next one.
+     */
+    public static class StageClock {
+        private long startNanos;
+        private transient boolean live;
+
+        private StageClock() {
+            restart(System.nanoTime());
+        }
+
+        private void restart(long nowNanos) {
+            startNanos = nowNanos;
+            live = true;
+        }
+    }
+
+    /**
+     * Everything recorded so far, keyed by metric name.
+     */
+    @CordaSerializable
+    public static class Snapshot {
+        private final Map<String, StageTiming> stages;
+        private final Map<String, Long> failures;
+
+        public Snapshot(Map<String, StageTiming> stages, Map<String, Long> failures) {
+            this.stages = stages;
+            this.failures = failures;
+        }
+
+        public Map<String, StageTiming> getStages() { return stages; }
+
+        public Map<String, Long> getFailures() { return failures; }
+    }
+
+    /**
+     * Count and recent-sample latencies of one stage, in nanoseconds.
+     */
+    @CordaSerializable
+    public static class StageTiming {
+        private final long count;
+        private final double mean;
+        private final double p50;
+        private final double p99;
+        private final long max;
+
+        public StageTiming(long count, double mean, double p50, double p99, long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public long getCount() { return count; }
+
+        public double getMean() { return mean; }
+
+        public double getP50() { return p50; }
+
+        public double getP99() { return p99; }
+
+        public long getMax() { return max; }
+    }
+}
@@ -0,0 +1,24 @@
+package com.template.flows;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByRPC;
+
+import java.util.List;
+
+public class GetCurrencyTotals {
+    @StartableByRPC
+    public static class GetCurrencyTotalsInitiator extends FlowLogic<List<CurrencyTotals.Totals>>{
+        /**
+         * Returns the node's running per-currency totals, for the webserver's /totals.
+         * Reads an in-memory aggregate only, so it never suspends and costs O(currencies).
+         */
+        @Override
+        public List<CurrencyTotals.Totals> call() throws FlowException {
+            CurrencyTotals totals = getServiceHub().cordaService(CurrencyTotals.class);
+            if (!totals.isReady()) {
+                throw new FlowException("Currency totals are not available yet");
+            }
+            return totals.snapshot();
+        }
+    }
+}
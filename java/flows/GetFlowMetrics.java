@@ -0,0 +1,17 @@
+package com.template.flows;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByRPC;
+
+public class GetFlowMetrics {
+    @StartableByRPC
+    public static class GetFlowMetricsInitiator extends FlowLogic<FlowMetrics.Snapshot>{
+        /**
+         * Returns the node's per-stage flow timings and failure counts, for the webserver's /metrics.
+         * Reads an in-memory registry only, so it never suspends.
+         */
+        @Override
+        public FlowMetrics.Snapshot call() {
+            return getServiceHub().cordaService(FlowMetrics.class).snapshot();
+        }
+    }
+}
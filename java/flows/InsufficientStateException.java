@@ -0,0 +1,9 @@
+package com.template.flows;
+import net.corda.core.flows.FlowException;
+
+/**
+ * Thrown by the flows when the balance states they need do not exist or are all in use.
+ */
+public class InsufficientStateException extends FlowException {
+    public InsufficientStateException(String message) { super(message); }
+}
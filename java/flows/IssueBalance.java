@@ -1,17 +1,14 @@
 package com.template.flows;
+import co.paralleluniverse.fibers.Suspendable;
 import com.template.contracts.BalanceContract;
 import com.template.states.Balance;
-import net.corda.core.contracts.StateAndRef;
 import net.corda.core.contracts.UniqueIdentifier;
 import net.corda.core.flows.*;
 import net.corda.core.identity.Party;
-import net.corda.core.node.services.Vault;
-import net.corda.core.node.services.vault.QueryCriteria;
 import net.corda.core.transactions.SignedTransaction;
 import net.corda.core.transactions.TransactionBuilder;
 
-import java.util.Arrays;
-import java.util.UUID;
+import java.util.Collections;
 public class IssueBalance {
     @InitiatingFlow
     @StartableByRPC
@@ -20,20 +17,38 @@ public class IssueBalance {
          * Flow Parameters
          *      - The only parameter needed to initate balance is currency
          *      - issuer is this node, balance is 0, and linearId is created within the flow.
+         *      - stripes (optional) opens a striped account of that many sub-states for hot accounts.
          */
         private String initialCurrency;
-        public IssueBalanceInitiator(String initialCurrency) { this.initialCurrency = initialCurrency; }
+        private int stripes;
+        private static final String FLOW = "issue";
+        public IssueBalanceInitiator(String initialCurrency) { this(initialCurrency, 1); }
 
+        public IssueBalanceInitiator(String initialCurrency, int stripes) throws IllegalArgumentException {
+            if (stripes < 1) {
+                throw new IllegalArgumentException("stripes must be greater than 0");
+            }
+            this.initialCurrency = initialCurrency;
+            this.stripes = stripes;
+        }
+
+        @Suspendable
         public SignedTransaction call() throws FlowException {
-            /**
-             * In transactions with multiple parties, we need a notary to reach consenus.
-             * There are two methods
-             *          1. Use the first Notary on the network
-             *          2. Specify a notary to use
-             * Second option is better for a non-test environment
-             */
-            final Party notary = getServiceHub().getNetworkMapCache().getNotaryIdentities().get(0); // METHOD 1
-            //final Party notary = getServiceHub().getNetworkMapCache().getNotary(CordaX500Name.parse("O=Notary,L=London,C=GB")); // METHOD 2
+            FlowMetrics metrics = getServiceHub().cordaService(FlowMetrics.class);
+            try {
+                return issue(metrics);
+            } catch (FlowException | RuntimeException e) {
+                metrics.failure(FLOW, e);
+                throw e;
+            }
+        }
+
+        /**
+         * Each stage is timed into FlowMetrics as "issue.<stage>".
+         */
+        @Suspendable
+        private SignedTransaction issue(FlowMetrics metrics) throws FlowException {
+            FlowMetrics.StageClock stage = metrics.start();
             /**
              * Output State - initial balance starts at 0
              *              - currency is passed as a flow parameter.
@@ -41,27 +56,45 @@ public class IssueBalance {
              *              - linearId is created here
              */
             UniqueIdentifier newId = new UniqueIdentifier();
-            Balance output = new Balance(0, 0, this.initialCurrency, this.getOurIdentity(), newId);
+            /**
+             * In transactions with multiple parties, we need a notary to reach consenus.
+             * NotarySelector spreads new balances across the configured notary pool by hashing the linearId.
+             */
+            final Party notary = getServiceHub().cordaService(NotarySelector.class).forNewState(newId);
+            metrics.stage(FLOW, "notary", stage);
             /**
              * Build Transaction - specify notary, input/output states, and corresponding contract command.
              *                   - command requires an owning key. we will use this node's (our) key.
+             *                   - a striped account gets one output per stripe, each with its own linearId
+             *                     carrying newId as externalId.
              */
-            TransactionBuilder txBuilder = newTransactionBuilder(notary)
-                                           .addOutputState(output)
+            TransactionBuilder txBuilder = new TransactionBuilder(notary)
                                            .addCommand(new BalanceContract.Commands.Issue(),
                                                        this.getOurIdentity().getOwningKey());
+            if (stripes == 1) {
+                txBuilder.addOutputState(new Balance(0, 0, this.initialCurrency, this.getOurIdentity(), newId));
+            } else {
+                for (int stripe = 0; stripe < stripes; stripe++) {
+                    txBuilder.addOutputState(new Balance(0, 0, this.initialCurrency, this.getOurIdentity(),
+                            new UniqueIdentifier(newId.getId().toString()), stripe, stripes, 0));
+                }
+            }
             /**
              * Verify transaction
              */
             txBuilder.verify(getServiceHub());
+            metrics.stage(FLOW, "verify", stage);
             /**
              * Sign transaction
              */
             SignedTransaction sTx = getServiceHub().signInitialTransaction(txBuilder);
+            metrics.stage(FLOW, "sign", stage);
             /**
              * Notarise transaction and record states in ledger
              */
-            return subFlow( new FinalityFlow(sTx, Collections.emptyList()) );
+            SignedTransaction result = subFlow( new FinalityFlow(sTx, Collections.emptyList()) );
+            metrics.stage(FLOW, "finality", stage);
+            return result;
             /**
              * CordaDocs - FinalityFlow -
              *          Verifies the given transaction, then sends it to the named notary.
@@ -0,0 +1,75 @@
+package com.template.flows;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Chooses the notary for new Balance states.
+ *
+ * The pool is the comma separated X500 names in the cordapp config key "notaries", or every notary
+ * on the network when it is not set. A new balance is assigned to pool[hash(linearId) % size], so
+ * accounts spread evenly across notaries; later transactions stay on the notary of their input
+ * state, so only a Transfer between accounts on different notaries needs a notary-change
+ * transaction. The resolved pool is cached and only
+ * rebuilt when the network map changes.
+ *
+ * That notary change is permanent, so states drift away from the notary assigned here, and the
+ * stripes of one account can end up on different notaries. Transfer moves a drifted source back to
+ * its assigned notary when it can, and ConsolidateStripes moves donor stripes onto the receiver's
+ * notary before draining them.
+ */
+@CordaService
+public class NotarySelector extends SingletonSerializeAsToken {
+    private static final Logger logger = LoggerFactory.getLogger(NotarySelector.class);
+
+    private final AppServiceHub serviceHub;
+    private volatile List<Party> pool = null;
+
+    public NotarySelector(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        serviceHub.getNetworkMapCache().getChanged().subscribe(change -> pool = null);
+    }
+
+    /**
+     * The notary a new balance with this linearId should be issued on.
+     */
+    public Party forNewState(UniqueIdentifier linearId) {
+        List<Party> notaries = pool();
+        return notaries.get(Math.floorMod(linearId.getId().hashCode(), notaries.size()));
+    }
+
+    private List<Party> pool() {
+        List<Party> notaries = pool;
+        if (notaries != null) return notaries;
+
+        notaries = new ArrayList<>();
+        if (serviceHub.getAppContext().getConfig().exists("notaries")) {
+            for (String name : serviceHub.getAppContext().getConfig().getString("notaries").split(",")) {
+                Party notary = serviceHub.getNetworkMapCache().getNotary(CordaX500Name.parse(name.trim()));
+                if (notary == null) {
+                    logger.warn("Configured notary {} is not on the network map", name.trim());
+                } else {
+                    notaries.add(notary);
+                }
+            }
+        } else {
+            notaries.addAll(serviceHub.getNetworkMapCache().getNotaryIdentities());
+            // every node must agree on the order for the hash assignment to be deterministic
+            notaries.sort(Comparator.comparing(notary -> notary.getName().toString()));
+        }
+        if (notaries.isEmpty()) {
+            throw new IllegalStateException("No notary available for new balances");
+        }
+        pool = notaries;
+        return notaries;
+    }
+}
@@ -0,0 +1,171 @@
+package com.template.flows;
+import com.template.schemas.OperationSchemaV1.PersistentOperation;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.FlowException;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Durable record of the operations flows hand to node services, keyed by their deduplication id.
+ *
+ * Corda calls FlowExternalAsyncOperation.execute again with the same deduplication id when a flow
+ * suspended in await is restored after a node restart, while the flows the first call started carry
+ * on from their own checkpoints. The services record each operation here and consult the record first:
+ *      - QUEUED: no flow was started for it, so it is safe to start one now.
+ *      - STARTED: a flow may be running; wait for its outcome, never start another.
+ *      - DONE/FAILED: answer with the recorded outcome.
+ * The service marks an operation STARTED before it starts the flow, and the flow marks it DONE inside
+ * its own database transaction, so the mark commits with the flow's result. A failure is only recorded
+ * by the service that watched the flow fail; a STARTED operation whose flow fails after a restart is
+ * reported as unknown once operations.recoveryTimeoutMillis (default 60000) has passed.
+ * Settled operations are pruned after operations.retentionHours (default 168).
+ */
+@CordaService
+public class OperationLog extends SingletonSerializeAsToken {
+    private static final Logger logger = LoggerFactory.getLogger(OperationLog.class);
+
+    public static final long DEFAULT_RECOVERY_TIMEOUT_MILLIS = 60_000;
+    public static final long DEFAULT_RETENTION_HOURS = 168;
+    private static final long POLL_MILLIS = 500;
+    private static final int MAX_ERROR_LENGTH = 1024;
+
+    private final AppServiceHub serviceHub;
+    private final long recoveryTimeoutMillis;
+    private final long retentionHours;
+    private final ScheduledExecutorService scheduler;
+
+    public OperationLog(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        this.recoveryTimeoutMillis = serviceHub.getAppContext().getConfig().exists("operations.recoveryTimeoutMillis")
+                ? serviceHub.getAppContext().getConfig().getLong("operations.recoveryTimeoutMillis") : DEFAULT_RECOVERY_TIMEOUT_MILLIS;
+        this.retentionHours = serviceHub.getAppContext().getConfig().exists("operations.retentionHours")
+                ? serviceHub.getAppContext().getConfig().getLong("operations.retentionHours") : DEFAULT_RETENTION_HOURS;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "operation-log");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::prune, 1, 1, TimeUnit.HOURS);
+    }
+
+    public Optional<PersistentOperation> find(String operationId) {
+        return Optional.ofNullable(serviceHub.withEntityManager(entityManager -> {
+            return entityManager.find(PersistentOperation.class, operationId);
+        }));
+    }
+
+    /**
+     * Every operation whose id starts with prefix, in id order.
+     */
+    public List<PersistentOperation> findByPrefix(String prefix) {
+        return serviceHub.withEntityManager(entityManager -> {
+            return entityManager.createQuery("SELECT o FROM " + PersistentOperation.class.getName()
+                    + " o WHERE o.operationId LIKE :prefix ORDER BY o.operationId", PersistentOperation.class)
+                    .setParameter("prefix", prefix + "%")
+                    .getResultList();
+        });
+    }
+
+    /**
+     * Record new operations as QUEUED; requests maps each operation id to a description of its work.
+     */
+    public void queued(Map<String, String> requests) {
+        Instant now = serviceHub.getClock().instant();
+        serviceHub.withEntityManager(entityManager -> {
+            requests.forEach((operationId, request) -> entityManager.persist(new PersistentOperation(operationId, request, now)));
+        });
+    }
+
+    public void started(Collection<String> operationIds) {
+        Instant now = serviceHub.getClock().instant();
+        update(operationIds, operation -> operation.started(now));
+    }
+
+    /**
+     * Mark operations settled by txId. Called from the flow that settled them, the mark commits with it.
+     */
+    public void done(Collection<String> operationIds, SecureHash txId) {
+        Instant now = serviceHub.getClock().instant();
+        update(operationIds, operation -> operation.done(txId.toString(), now));
+    }
+
+    public void failed(Collection<String> operationIds, Throwable error) {
+        Instant now = serviceHub.getClock().instant();
+        String message = String.valueOf(error.getMessage());
+        String truncated = message.length() > MAX_ERROR_LENGTH ? message.substring(0, MAX_ERROR_LENGTH) : message;
+        try {
+            update(operationIds, operation -> operation.failed(truncated, now));
+        } catch (RuntimeException e) {
+            logger.error("Could not record the failure of operations {}", operationIds, e);
+        }
+    }
+
+    private void update(Collection<String> operationIds, Consumer<PersistentOperation> change) {
+        if (operationIds.isEmpty()) return;
+        serviceHub.withEntityManager(entityManager -> {
+            for (String operationId : operationIds) {
+                PersistentOperation operation = entityManager.find(PersistentOperation.class, operationId);
+                if (operation != null) change.accept(operation);
+            }
+        });
+    }
+
+    /**
+     * The transaction that settled an operation a flow started earlier, polling the record until it is
+     * DONE or FAILED. Fails as unknown after the recovery timeout rather than start the work again.
+     */
+    public CompletableFuture<SecureHash> outcome(String operationId) {
+        CompletableFuture<SecureHash> result = new CompletableFuture<>();
+        poll(operationId, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(recoveryTimeoutMillis), result);
+        return result;
+    }
+
+    private void poll(String operationId, long deadlineNanos, CompletableFuture<SecureHash> result) {
+        try {
+            PersistentOperation operation = find(operationId).orElse(null);
+            if (operation == null) {
+                result.completeExceptionally(new FlowException("Operation " + operationId + " was never recorded"));
+            } else if (operation.getStatus() == PersistentOperation.Status.DONE) {
+                result.complete(SecureHash.parse(operation.getTransactionId()));
+            } else if (operation.getStatus() == PersistentOperation.Status.FAILED) {
+                result.completeExceptionally(new FlowException(operation.getError()));
+            } else if (System.nanoTime() - deadlineNanos > 0) {
+                result.completeExceptionally(new FlowException("Outcome of operation " + operationId + " (" + operation.getRequest()
+                        + ") is unknown: its flow was started before the node restarted and has not finished. It was not"
+                        + " started again; check the balance history before retrying."));
+            } else {
+                scheduler.schedule(() -> poll(operationId, deadlineNanos, result), POLL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    private void prune() {
+        Instant cutoff = serviceHub.getClock().instant().minus(retentionHours, ChronoUnit.HOURS);
+        try {
+            int pruned = serviceHub.withEntityManager(entityManager -> {
+                return entityManager.createQuery("DELETE FROM " + PersistentOperation.class.getName()
+                        + " o WHERE o.updatedAt < :cutoff AND o.status IN (:settled)")
+                        .setParameter("cutoff", cutoff)
+                        .setParameter("settled", Arrays.asList(PersistentOperation.Status.DONE, PersistentOperation.Status.FAILED))
+                        .executeUpdate();
+            });
+            if (pruned > 0) logger.info("Pruned {} settled operations", pruned);
+        } catch (RuntimeException e) {
+            logger.warn("Could not prune settled operations", e);
+        }
+    }
+}
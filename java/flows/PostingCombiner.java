@@ -0,0 +1,165 @@
+package com.template.flows;
+import com.template.flows.BatchPosting.Posting;
+import com.template.schemas.OperationSchemaV1.PersistentOperation;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import net.corda.core.transactions.SignedTransaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Node-side write combiner for postings.
+ *
+ * Concurrent deposits/withdrawals against the same balance would each query the same unconsumed
+ * state and all but one would lose the notary double-spend race. The combiner buffers postings per
+ * linearId for a short window (or until maxPostings are waiting), settles them with one BatchPosting
+ * flow and completes every caller with the shared transaction id.
+ *
+ * Only one combined flow per balance is in flight at a time; postings arriving meanwhile are buffered
+ * and flushed as soon as it finishes.
+ *
+ * Postings are keyed by the caller's operation id and recorded in the OperationLog, so a caller that
+ * submits the same operation again - a CombinedPosting restored from its checkpoint after a restart -
+ * gets the outcome of the first submission instead of moving the money twice.
+ */
+@CordaService
+public class PostingCombiner extends SingletonSerializeAsToken {
+    private static final Logger logger = LoggerFactory.getLogger(PostingCombiner.class);
+
+    public static final long DEFAULT_WINDOW_MILLIS = 20;
+    public static final int DEFAULT_MAX_POSTINGS = 256;
+
+    private final AppServiceHub serviceHub;
+    private final long windowMillis;
+    private final int maxPostings;
+    private final ScheduledExecutorService scheduler;
+
+    // guarded by this
+    private final Map<UniqueIdentifier, PendingBatch> pending = new HashMap<>();
+    private final Set<UniqueIdentifier> inFlight = new HashSet<>();
+    private final Map<String, CompletableFuture<SecureHash>> byOperationId = new HashMap<>();
+
+    public PostingCombiner(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        this.windowMillis = serviceHub.getAppContext().getConfig().exists("combiner.windowMillis")
+                ? serviceHub.getAppContext().getConfig().getLong("combiner.windowMillis") : DEFAULT_WINDOW_MILLIS;
+        this.maxPostings = serviceHub.getAppContext().getConfig().exists("combiner.maxPostings")
+                ? serviceHub.getAppContext().getConfig().getInt("combiner.maxPostings") : DEFAULT_MAX_POSTINGS;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "posting-combiner");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queue a posting under operationId. The returned future completes with the id of the transaction that
+     * settled it. Submitting an operation id again returns the first submission's outcome: still pending,
+     * recorded, or - if its flow was started before a restart - awaited through the OperationLog.
+     */
+    public CompletableFuture<SecureHash> submit(String operationId, Posting posting) {
+        CompletableFuture<SecureHash> result = new CompletableFuture<>();
+        synchronized (this) {
+            CompletableFuture<SecureHash> submitted = byOperationId.putIfAbsent(operationId, result);
+            if (submitted != null) return submitted;
+        }
+        result.whenComplete((txId, error) -> {
+            synchronized (PostingCombiner.this) { byOperationId.remove(operationId); }
+        });
+
+        OperationLog operations = serviceHub.cordaService(OperationLog.class);
+        try {
+            PersistentOperation recorded = operations.find(operationId).orElse(null);
+            if (recorded == null) {
+                operations.queued(Collections.singletonMap(operationId, describe(posting)));
+            } else if (recorded.getStatus() != PersistentOperation.Status.QUEUED) {
+                // its flow may already have moved the money, only ever wait for that flow's outcome
+                operations.outcome(operationId).whenComplete((txId, error) -> {
+                    if (error != null) result.completeExceptionally(error);
+                    else result.complete(txId);
+                });
+                return result;
+            }
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        synchronized (this) {
+            UniqueIdentifier balanceId = posting.getBalanceId();
+            PendingBatch batch = pending.computeIfAbsent(balanceId, id -> {
+                PendingBatch created = new PendingBatch();
+                scheduler.schedule(() -> onWindowElapsed(id, created), windowMillis, TimeUnit.MILLISECONDS);
+                return created;
+            });
+            batch.postings.add(posting);
+            batch.operationIds.add(operationId);
+            batch.callers.add(result);
+            if (batch.postings.size() >= maxPostings) {
+                batch.due = true;
+                flushIfIdle(balanceId);
+            }
+        }
+        return result;
+    }
+
+    private static String describe(Posting posting) {
+        return posting.getType() + " " + posting.getAmount().toPlainString() + " " + posting.getBalanceId();
+    }
+
+    private synchronized void onWindowElapsed(UniqueIdentifier balanceId, PendingBatch batch) {
+        if (pending.get(balanceId) != batch) return; // already flushed by the size cap
+        batch.due = true;
+        flushIfIdle(balanceId);
+    }
+
+    /**
+     * Start the combined flow for balanceId unless one is already running for it.
+     */
+    private void flushIfIdle(UniqueIdentifier balanceId) {
+        if (inFlight.contains(balanceId)) return;
+        PendingBatch batch = pending.get(balanceId);
+        if (batch == null || !batch.due) return;
+        pending.remove(balanceId);
+        inFlight.add(balanceId);
+
+        OperationLog operations = serviceHub.cordaService(OperationLog.class);
+        CompletableFuture<List<SignedTransaction>> flow;
+        try {
+            // marked before the flow exists, so a restart can never leave a running flow behind a QUEUED posting
+            operations.started(batch.operationIds);
+            flow = serviceHub.startFlow(new BatchPosting.BatchPostingInitiator(batch.postings, batch.operationIds))
+                    .getReturnValue().toCompletableFuture();
+        } catch (Exception e) {
+            flow = new CompletableFuture<>();
+            flow.completeExceptionally(e);
+        }
+        flow.whenComplete((transactions, error) -> {
+            if (error != null) {
+                logger.warn("Combined posting of {} entries for {} failed", batch.postings.size(), balanceId, error);
+                operations.failed(batch.operationIds, error);
+                batch.callers.forEach(caller -> caller.completeExceptionally(error));
+            } else {
+                SecureHash txId = transactions.get(0).getId();
+                batch.callers.forEach(caller -> caller.complete(txId));
+            }
+            synchronized (PostingCombiner.this) {
+                inFlight.remove(balanceId);
+                flushIfIdle(balanceId);
+            }
+        });
+    }
+
+    private static class PendingBatch {
+        final List<Posting> postings = new ArrayList<>();
+        final List<String> operationIds = new ArrayList<>();
+        final List<CompletableFuture<SecureHash>> callers = new ArrayList<>();
+        boolean due;
+    }
+}
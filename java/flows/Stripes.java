@@ -0,0 +1,122 @@
+package com.template.flows;
+import co.paralleluniverse.fibers.Suspendable;
+import com.template.schemas.OperationSchemaV1.PersistentOperation;
+import com.template.states.Balance;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.node.services.StatesNotAvailableException;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.utilities.NonEmptySet;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Predicate;
+
+/**
+ * Helpers shared by the flows to find the unconsumed state(s) behind an account id.
+ *
+ * A plain account is a single Balance whose linearId is the account id. A striped account is
+ * stripeCount Balances whose linearIds carry the account id as externalId; only stripes that no
+ * other flow has soft-locked are returned for those by the vault query (the index returns every
+ * stripe and reserve() skips the locked ones).
+ */
+public class Stripes {
+    // how long a posting waits for a compaction of its account, unless the cordapp config sets compaction.maxWaitMillis
+    public static final long DEFAULT_COMPACTION_WAIT_MILLIS = 30_000;
+    private static final Duration COMPACTION_POLL = Duration.ofMillis(500);
+
+    private Stripes() {}
+
+    /**
+     * The plain balance or the stripes of accountId, resolved from the BalanceIndex.
+     * Falls back to the vault when the index misses, and waits out a compaction that has
+     * consumed the account's state and not re-issued it yet.
+     */
+    @Suspendable
+    public static List<StateAndRef<Balance>> queryAccount(FlowLogic<?> flow, UniqueIdentifier accountId) throws FlowException {
+        List<StateAndRef<Balance>> found = lookup(flow, accountId);
+        while (found.isEmpty() && awaitCompaction(flow, accountId)) {
+            found = lookup(flow, accountId);
+        }
+        return found;
+    }
+
+    @Suspendable
+    private static List<StateAndRef<Balance>> lookup(FlowLogic<?> flow, UniqueIdentifier accountId) {
+        List<StateAndRef<Balance>> indexed = flow.getServiceHub().cordaService(BalanceIndex.class).getAccount(accountId);
+        return indexed.isEmpty() ? queryVault(flow, accountId) : indexed;
+    }
+
+    /**
+     * Called when no unconsumed state was found for accountId. If a CompactBalance of the account is
+     * between its Compact and its Reissue, sleep (checkpointed, so no thread is held) and return true
+     * for the caller to look again. Returns false at once when no compaction is running.
+     *
+     * A compaction still unfinished compaction.maxWaitMillis (default 30000) after it started has most
+     * likely failed; this throws with the Compact transaction id, which CompactBalance takes to re-issue
+     * the balance.
+     */
+    @Suspendable
+    public static boolean awaitCompaction(FlowLogic<?> flow, UniqueIdentifier accountId) throws FlowException {
+        Optional<PersistentOperation> running = CompactBalance.running(flow.getServiceHub(), accountId);
+        if (!running.isPresent()) return false;
+        long maxWaitMillis = flow.getServiceHub().getAppContext().getConfig().exists("compaction.maxWaitMillis")
+                ? flow.getServiceHub().getAppContext().getConfig().getLong("compaction.maxWaitMillis") : DEFAULT_COMPACTION_WAIT_MILLIS;
+        Instant deadline = running.get().getUpdatedAt().plusMillis(maxWaitMillis);
+        if (flow.getServiceHub().getClock().instant().isAfter(deadline)) {
+            throw new InsufficientStateException("Account " + accountId + " is being compacted by transaction "
+                    + running.get().getRequest() + ", which has not been re-issued since " + running.get().getUpdatedAt()
+                    + ". If its CompactBalance flow has failed, start CompactBalance with that transaction id to re-issue it.");
+        }
+        flow.sleep(COMPACTION_POLL);
+        return true;
+    }
+
+    /**
+     * Query the vault for the plain balance or the free stripes of accountId.
+     */
+    @Suspendable
+    public static List<StateAndRef<Balance>> queryVault(FlowLogic<?> flow, UniqueIdentifier accountId) {
+        QueryCriteria plainCriteria = new QueryCriteria.LinearStateQueryCriteria()
+                .withUuid(Collections.singletonList(accountId.getId()))
+                .withStatus(Vault.StateStatus.UNCONSUMED)
+                .withRelevancyStatus(Vault.RelevancyStatus.RELEVANT);
+        QueryCriteria stripeCriteria = new QueryCriteria.LinearStateQueryCriteria()
+                .withExternalId(Collections.singletonList(accountId.getId().toString()))
+                .withStatus(Vault.StateStatus.UNCONSUMED)
+                .withRelevancyStatus(Vault.RelevancyStatus.RELEVANT)
+                .and(new QueryCriteria.VaultQueryCriteria().withSoftLockingCondition(
+                        new QueryCriteria.SoftLockingCondition(QueryCriteria.SoftLockingType.UNLOCKED_ONLY, Collections.emptyList())));
+        return flow.getServiceHub().getVaultService()
+                .queryBy(Balance.class, plainCriteria.or(stripeCriteria)).getStates();
+    }
+
+    /**
+     * Soft-lock the first candidate accepted by fits, starting at an offset derived from the flow id so
+     * concurrent flows spread across stripes. Stripes locked by another flow in the meantime are skipped.
+     *
+     * @return the reserved stripe, or null if none is free and fits.
+     */
+    @Suspendable
+    public static StateAndRef<Balance> reserve(FlowLogic<?> flow, List<StateAndRef<Balance>> candidates, Predicate<Balance> fits) {
+        if (candidates.isEmpty()) return null;
+        int offset = Math.floorMod(flow.getRunId().getUuid().hashCode(), candidates.size());
+        for (int i = 0; i < candidates.size(); i++) {
+            StateAndRef<Balance> candidate = candidates.get((offset + i) % candidates.size());
+            if (!fits.test(candidate.getState().getData())) continue;
+            try {
+                flow.getServiceHub().getVaultService().softLockReserve(flow.getRunId().getUuid(), NonEmptySet.of(candidate.getRef()));
+                return candidate;
+            } catch (StatesNotAvailableException e) {
+                // another flow took this stripe, try the next one
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,143 @@
+package com.template.flows;
+import co.paralleluniverse.fibers.Suspendable;
+import com.template.contracts.BalanceContract;
+import com.template.states.Balance;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.List;
+public class Transfer {
+    @InitiatingFlow
+    @StartableByRPC
+    public static class TransferInitiator extends FlowLogic<SignedTransaction>{
+        /**
+         * Flow Parameters
+         *      - fromId and toId are the accounts (plain balances or striped accounts) to move amount between.
+         *      - both balances are consumed and produced in one transaction, so the transfer is atomic
+         *        and needs a single signature and notarisation.
+         */
+        private UniqueIdentifier fromId;
+        private UniqueIdentifier toId;
+        private BigDecimal amount;
+        private static final String FLOW = "transfer";
+
+        public TransferInitiator(UniqueIdentifier fromId, UniqueIdentifier toId, BigDecimal amount) throws IllegalArgumentException {
+            if (amount.signum() <= 0) {
+                throw new IllegalArgumentException("amount must be greater than 0");
+            }
+            if (fromId.equals(toId)) {
+                throw new IllegalArgumentException("cannot transfer to the same account");
+            }
+            this.fromId = fromId;
+            this.toId = toId;
+            this.amount = amount;
+        }
+
+        @Suspendable
+        public SignedTransaction call() throws FlowException {
+            FlowMetrics metrics = getServiceHub().cordaService(FlowMetrics.class);
+            try {
+                return transfer(metrics);
+            } catch (FlowException | RuntimeException e) {
+                metrics.failure(FLOW, e);
+                throw e;
+            }
+        }
+
+        /**
+         * Each stage is timed into FlowMetrics as "transfer.<stage>".
+         */
+        @Suspendable
+        private SignedTransaction transfer(FlowMetrics metrics) throws FlowException {
+            FlowMetrics.StageClock stage = metrics.start();
+            /**
+             * Input States - the source uses a stripe that covers the amount (consolidating its stripes when
+             *                none does), the destination any free stripe, as in Withdraw and Deposit.
+             */
+            List<StateAndRef<Balance>> sources = Stripes.queryAccount(this, fromId);
+            List<StateAndRef<Balance>> destinations = Stripes.queryAccount(this, toId);
+            if (sources.isEmpty()) {
+                throw new InsufficientStateException("No unconsumed balance found for " + fromId);
+            }
+            if (destinations.isEmpty()) {
+                throw new InsufficientStateException("No unconsumed balance found for " + toId);
+            }
+            StateAndRef<Balance> source = sources.get(0);
+            String currency = source.getState().getData().getCurrency();
+            if (!currency.equals(destinations.get(0).getState().getData().getCurrency())) {
+                throw new FlowException("Cannot transfer " + currency + " to a "
+                        + destinations.get(0).getState().getData().getCurrency() + " account");
+            }
+            final long amountMinor = Amounts.minorUnits(source.getState().getData(), amount);
+            if (source.getState().getData().isStriped()) {
+                source = Stripes.reserve(this, sources, stripe -> stripe.getBalanceMinor() >= amountMinor);
+            }
+            StateAndRef<Balance> destination = destinations.get(0).getState().getData().isStriped()
+                    ? Stripes.reserve(this, destinations, stripe -> true)
+                    : destinations.get(0);
+            if (destination == null) {
+                throw new InsufficientStateException("Every stripe of account " + toId + " is in use");
+            }
+            metrics.stage(FLOW, "vault_query", stage);
+            if (source == null) {
+                SignedTransaction consolidation = subFlow(new ConsolidateStripes.ConsolidateStripesInitiator(fromId));
+                source = ConsolidateStripes.receiver(consolidation);
+                metrics.stage(FLOW, "consolidate", stage);
+            }
+            Balance sourceBalance = source.getState().getData();
+            // a plain balance, or the consolidated stripe when the account's stripes together hold too little
+            if (sourceBalance.getBalanceMinor() < amountMinor) {
+                throw new FlowException("Insufficient funds in account " + fromId + " to transfer " + amount);
+            }
+            Balance destinationBalance = destination.getState().getData();
+            /**
+             * Both inputs must be on one notary. Balances are spread across the notary pool (see NotarySelector),
+             * so when they differ one of them is moved with a notary-change transaction, for good: later postings
+             * stay on the notary a state is on. To keep that drift from piling hot accounts onto one notary, the
+             * source's home notary - the one NotarySelector assigns its account - wins when either input is
+             * already there, so a drifted source moves back home; otherwise the destination follows the source.
+             */
+            Party home = getServiceHub().cordaService(NotarySelector.class).forNewState(sourceBalance.getAccountId());
+            final Party notary = destination.getState().getNotary().equals(home) ? home : source.getState().getNotary();
+            if (!source.getState().getNotary().equals(notary)) {
+                source = subFlow(new NotaryChangeFlow<>(source, notary));
+            }
+            if (!destination.getState().getNotary().equals(notary)) {
+                destination = subFlow(new NotaryChangeFlow<>(destination, notary));
+            }
+            metrics.stage(FLOW, "notary", stage);
+            /**
+             * Output States - the source's moneyOut and the destination's moneyIn grow by this.amount.
+             */
+            TransactionBuilder txBuilder = new TransactionBuilder(notary)
+                    .addInputState(source)
+                    .addInputState(destination)
+                    .addOutputState(sourceBalance.withTotals(sourceBalance.getMoneyInMinor(), Amounts.add(sourceBalance.getMoneyOutMinor(), amountMinor)))
+                    .addOutputState(destinationBalance.withTotals(Amounts.add(destinationBalance.getMoneyInMinor(), amountMinor), destinationBalance.getMoneyOutMinor()))
+                    .addCommand(new BalanceContract.Commands.Transfer(),
+                            this.getOurIdentity().getOwningKey());
+            /**
+             * Verify transaction
+             */
+            txBuilder.verify(getServiceHub());
+            metrics.stage(FLOW, "verify", stage);
+            /**
+             * Sign transaction
+             */
+            SignedTransaction sTx = getServiceHub().signInitialTransaction(txBuilder);
+            metrics.stage(FLOW, "sign", stage);
+            /**
+             * Notarise transaction and record states in ledger
+             */
+            SignedTransaction result = subFlow( new FinalityFlow(sTx, Collections.emptyList()) );
+            metrics.stage(FLOW, "finality", stage);
+            return result;
+        }
+    }
+}
@@ -1,17 +1,17 @@
 package com.template.flows;
+import co.paralleluniverse.fibers.Suspendable;
 import com.template.contracts.BalanceContract;
 import com.template.states.Balance;
 import net.corda.core.contracts.StateAndRef;
 import net.corda.core.contracts.UniqueIdentifier;
 import net.corda.core.flows.*;
 import net.corda.core.identity.Party;
-import net.corda.core.node.services.Vault;
-import net.corda.core.node.services.vault.QueryCriteria;
 import net.corda.core.transactions.SignedTransaction;
 import net.corda.core.transactions.TransactionBuilder;
 
-import java.util.Arrays;
-import java.util.UUID;
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.List;
 public class Withdraw {
     @InitiatingFlow
     @StartableByRPC
@@ -21,71 +21,105 @@ public class Withdraw {
          *      - The only parameters needed to withdraw are amount and linearId.
          *      - issuer, currency, and moneyOut all stay the same.
          */
-        private UniqueIdentifier balanceId; //tells us which account to deposit into
-        private double amount;
+        private UniqueIdentifier balanceId; //tells us which account (plain balance or striped account) to use
+        private BigDecimal amount;
+        private static final String FLOW = "withdraw";
 
-        public WithdrawInitiator(UniqueIdentifier balanceId, double amount) throws IllegalArgumentException {
-            if (!(amount > 0)) {
+        public WithdrawInitiator(UniqueIdentifier balanceId, BigDecimal amount) throws IllegalArgumentException {
+            if (amount.signum() <= 0) {
                 throw new IllegalArgumentException("amount must be greater than 0");
             }
             this.balanceId = balanceId;
             this.amount = amount;
         }
 
+        @Suspendable
         public SignedTransaction call() throws FlowException {
+            FlowMetrics metrics = getServiceHub().cordaService(FlowMetrics.class);
+            try {
+                return withdraw(metrics);
+            } catch (FlowException | RuntimeException e) {
+                metrics.failure(FLOW, e);
+                throw e;
+            }
+        }
+
+        /**
+         * Each stage is timed into FlowMetrics as "withdraw.<stage>".
+         */
+        @Suspendable
+        private SignedTransaction withdraw(FlowMetrics metrics) throws FlowException {
+            FlowMetrics.StageClock stage = metrics.start();
             /**
-             * In transactions with multiple parties, we need a notary to reach consenus.
-             * There are two methods
-             *          1. Use the first Notary on the network
-             *          2. Specify a notary to use
-             * Second option is better for a non-test environment
-             */
-            final Party notary = getServiceHub().getNetworkMapCache().getNotaryIdentities().get(0); // METHOD 1
-            //final Party notary = getServiceHub().getNetworkMapCache().getNotary(CordaX500Name.parse("O=Notary,L=London,C=GB")); // METHOD 2
-            /**
-             * QueryCriteria - query the vault by UniqueIdentifier for unconsumed state
-             *               - this will give us the balance specified by the parameters, or originalBalance
+             * Lookup - resolve the unconsumed state by UniqueIdentifier from the BalanceIndex,
+             *          querying the vault only when the index misses
+             *        - this will give us the balance specified by the parameters, or originalBalance
+             *        - for a striped account we get its free stripes.
              */
-            String targetBalance = balanceId.toString();
-            QueryCriteria.LinearStateQueryCriteria inputCriteria = new QueryCriteria.LinearStateQueryCriteria()
-                    .withUuid(Arrays.asList(UUID.fromString(targetBalance)))
-                    .withStatus(Vault.StateStatus.UNCONSUMED)
-                    .withRelevancyStatus(Vault.RelevancyStatus.RELEVANT);
+            List<StateAndRef<Balance>> candidates = Stripes.queryAccount(this, balanceId);
+            if (candidates.isEmpty()) {
+                throw new InsufficientStateException("No unconsumed balance found for " + balanceId);
+            }
             /**
              * Input State - using inputCriteria, we retrieve the balance with the correct linearId
              *             - we want to consume this state and output a new state with the withdrawn balance.
+             *             - striped accounts use a stripe that covers the amount, and only consolidate
+             *               the stripes into one when none does.
+             */
+            StateAndRef<Balance> balanceStateAndRef = candidates.get(0);
+            final long amountMinor = Amounts.minorUnits(balanceStateAndRef.getState().getData(), amount);
+            if (balanceStateAndRef.getState().getData().isStriped()) {
+                balanceStateAndRef = Stripes.reserve(this, candidates, stripe -> stripe.getBalanceMinor() >= amountMinor);
+            }
+            metrics.stage(FLOW, "vault_query", stage);
+            if (balanceStateAndRef == null) {
+                SignedTransaction consolidation = subFlow(new ConsolidateStripes.ConsolidateStripesInitiator(balanceId));
+                balanceStateAndRef = ConsolidateStripes.receiver(consolidation);
+                metrics.stage(FLOW, "consolidate", stage);
+            }
+            Balance originalBalance = balanceStateAndRef.getState().getData();
+            // a plain balance, or the consolidated stripe when the account's stripes together hold too little
+            if (originalBalance.getBalanceMinor() < amountMinor) {
+                throw new FlowException("Insufficient funds in account " + balanceId + " to withdraw " + amount);
+            }
+            /**
+             * In transactions with multiple parties, we need a notary to reach consenus.
+             * The transaction stays on the notary the input balance was issued on (see NotarySelector),
+             * so no notary change is ever needed.
              */
-            StateAndRef balanceStateAndRef = getServiceHub().getVaultService().queryBy(Balance.class, inputCriteria).getStates().get(0);
-            Balance originalBalance = (Balance) balanceStateAndRef.getState().getData();
+            final Party notary = balanceStateAndRef.getState().getNotary();
+            metrics.stage(FLOW, "notary", stage);
             /**
              *  Output State - newMoneyOut should be oldMoneyOut plus this.amount
              *               - moneyIn, currency, issuer, linearId should all stay the same.
              */
-            double newMoneyOut = originalBalance.getMoneyOut() + amount;
-            Balance output = new Balance(originalBalance.getMoneyIn(), newMoneyOut,
-                    originalBalance.getCurrency(), originalBalance.getIssuer(),
-                    originalBalance.getLinearId());
+            long newMoneyOut = Amounts.add(originalBalance.getMoneyOutMinor(), amountMinor);
+            Balance output = originalBalance.withTotals(originalBalance.getMoneyInMinor(), newMoneyOut);
             /**
              * Build Transaction - specify notary, input/output states, and corresponding contract command.
              *                   - command requires an owning key. we will use this node's (our) key.
              */
-            TransactionBuilder txBuilder = newTransactionBuilder(notary)
+            TransactionBuilder txBuilder = new TransactionBuilder(notary)
                     .addInputState(balanceStateAndRef)
                     .addOutputState(output)
-                    .addCommand(new BalanceContract.Commands.Deposit(),
+                    .addCommand(new BalanceContract.Commands.Withdraw(),
                             this.getOurIdentity().getOwningKey());
             /**
              * Verify transaction
              */
             txBuilder.verify(getServiceHub());
+            metrics.stage(FLOW, "verify", stage);
             /**
              * Sign transaction
              */
             SignedTransaction sTx = getServiceHub().signInitialTransaction(txBuilder);
+            metrics.stage(FLOW, "sign", stage);
             /**
              * Notarise transaction and record states in ledger
              */
-            return subFlow( new FinalityFlow(sTx, Collections.emptyList()) );
+            SignedTransaction result = subFlow( new FinalityFlow(sTx, Collections.emptyList()) );
+            metrics.stage(FLOW, "finality", stage);
+            return result;
             /**
              * CordaDocs - FinalityFlow -
              *          Verifies the given transaction, then sends it to the named notary.
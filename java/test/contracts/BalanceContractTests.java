@@ -0,0 +1,306 @@
+package com.template.contracts;
+
+import com.template.states.Balance;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.testing.core.TestIdentity;
+import net.corda.testing.node.MockServices;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import static net.corda.testing.node.NodeTestUtils.ledger;
+
+/**
+ * BalanceContract rules for Issue, Compact, Reissue, Consolidate and Transfer, overdrafts, and for
+ * Deposit/Withdraw totals near the limits of a long.
+ */
+public class BalanceContractTests {
+    private final TestIdentity bank = new TestIdentity(new CordaX500Name("Bank", "London", "GB"));
+    private final TestIdentity other = new TestIdentity(new CordaX500Name("Other", "London", "GB"));
+    // stands in for the node's CompactionKey
+    private final TestIdentity compaction = new TestIdentity(new CordaX500Name("Compaction", "London", "GB"));
+    private final MockServices ledgerServices = new MockServices(Arrays.asList("com.template.contracts"), bank);
+
+    private Balance plain(long moneyInMinor, long moneyOutMinor) {
+        return new Balance(moneyInMinor, moneyOutMinor, "USD", bank.getParty(), new UniqueIdentifier());
+    }
+
+    private Balance stripe(UUID accountId, int stripe, int stripeCount, long moneyInMinor, long moneyOutMinor) {
+        return new Balance(moneyInMinor, moneyOutMinor, "USD", bank.getParty(),
+                new UniqueIdentifier(accountId.toString(), UUID.randomUUID()), stripe, stripeCount, 0);
+    }
+
+    @Test
+    public void compactEndsTheChain() {
+        Balance balance = plain(10000, 2500);
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(BalanceContract.ID, balance);
+                tx.command(bank.getPublicKey(), new BalanceContract.Commands.Compact());
+                return tx.verifies();
+            });
+            l.transaction(tx -> {
+                tx.input(BalanceContract.ID, balance);
+                tx.output(BalanceContract.ID, balance.reissued());
+                tx.command(bank.getPublicKey(), new BalanceContract.Commands.Compact());
+                return tx.failsWith("Compaction cannot create states.");
+            });
+            l.transaction(tx -> {
+                tx.input(BalanceContract.ID, balance);
+                tx.command(other.getPublicKey(), new BalanceContract.Commands.Compact());
+                return tx.failsWith("Only the issuer can compact a balance");
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void issueRejectsMalformedStripesBeforeGroupingThem() {
+        UUID accountId = UUID.randomUUID();
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.output(BalanceContract.ID, stripe(accountId, 0, 2, 0, 0));
+                tx.output(BalanceContract.ID, stripe(accountId, 1, 2, 0, 0));
+                tx.command(bank.getPublicKey(), new BalanceContract.Commands.Issue());
+                return tx.verifies();
+            });
+            l.transaction(tx -> {
+                tx.output(BalanceContract.ID, new Balance(0, 0, "USD", bank.getParty(), new UniqueIdentifier(), 0, 2, 0));
+                tx.command(bank.getPublicKey(), new BalanceContract.Commands.Issue());
+                return tx.failsWith("A striped account must carry its account id");
+            });
+            l.transaction(tx -> {
+                tx.output(BalanceContract.ID, new Balance(0, 0, "USD", bank.getParty(), new UniqueIdentifier("not-a-uuid", UUID.randomUUID()), 0, 2, 0));
+                tx.command(bank.getPublicKey(), new BalanceContract.Commands.Issue());
+                return tx.failsWith("A striped account must carry its account id");
+            });
+            l.transaction(tx -> {
+                tx.output(BalanceContract.ID, new Balance(0, 0, "USD", bank.getParty(), new UniqueIdentifier(), 0, 0, 0));
+                tx.command(bank.getPublicKey(), new BalanceContract.Commands.Issue());
+                return tx.failsWith("stripeCount must be at least 1");
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void reissueNeedsTheIssuerAndTheCompactionKey() {
+        Balance reissued = plain(10000, 2500);
+        SecureHash compacted = SecureHash.randomSHA256();
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.output(BalanceContract.ID, reissued);
+                tx.command(Arrays.asList(bank.getPublicKey(), compaction.getPublicKey()),
+                        new BalanceContract.Commands.Reissue(compacted, compaction.getPublicKey()));
+                return tx.verifies();
+            });
+            l.transaction(tx -> {
+                tx.output(BalanceContract.ID, reissued);
+                tx.command(bank.getPublicKey(), new BalanceContract.Commands.Reissue(compacted, compaction.getPublicKey()));
+                return tx.failsWith("A re-issue must be signed by the compaction key");
+            });
+            l.transaction(tx -> {
+                tx.output(BalanceContract.ID, reissued);
+                tx.command(bank.getPublicKey(), new BalanceContract.Commands.Reissue(compacted, bank.getPublicKey()));
+                return tx.failsWith("The compaction key cannot be the issuer's identity key");
+            });
+            l.transaction(tx -> {
+                tx.output(BalanceContract.ID, reissued);
+                tx.command(compaction.getPublicKey(), new BalanceContract.Commands.Reissue(compacted, compaction.getPublicKey()));
+                return tx.failsWith("Only the issuer can re-issue a balance");
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void reissueProducesWellFormedFreshBalances() {
+        Balance balance = plain(10000, 2500);
+        SecureHash compacted = SecureHash.randomSHA256();
+        BalanceContract.Commands.Reissue reissue = new BalanceContract.Commands.Reissue(compacted, compaction.getPublicKey());
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(BalanceContract.ID, balance);
+                tx.output(BalanceContract.ID, balance.reissued());
+                tx.command(Arrays.asList(bank.getPublicKey(), compaction.getPublicKey()), reissue);
+                return tx.failsWith("No inputs should be consumed when re-issuing a balance.");
+            });
+            l.transaction(tx -> {
+                tx.output(BalanceContract.ID, balance.withTotals(10000, 2500));
+                tx.command(Arrays.asList(bank.getPublicKey(), compaction.getPublicKey()), reissue);
+                return tx.failsWith("A re-issued balance starts a new chain");
+            });
+            l.transaction(tx -> {
+                tx.output(BalanceContract.ID, plain(-100, 0));
+                tx.command(Arrays.asList(bank.getPublicKey(), compaction.getPublicKey()), reissue);
+                return tx.failsWith("Re-issued totals cannot be negative");
+            });
+            l.transaction(tx -> {
+                tx.output(BalanceContract.ID, balance.reissued());
+                tx.output(BalanceContract.ID, balance.reissued());
+                tx.command(Arrays.asList(bank.getPublicKey(), compaction.getPublicKey()), reissue);
+                return tx.failsWith("Each balance can only be re-issued once.");
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void consolidateConservesTheAccount() {
+        UUID accountId = UUID.randomUUID();
+        Balance receiver = stripe(accountId, 0, 2, 5000, 1000);
+        Balance donor = stripe(accountId, 1, 2, 3000, 500);
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(BalanceContract.ID, receiver);
+                tx.input(BalanceContract.ID, donor);
+                tx.output(BalanceContract.ID, receiver.withTotals(7500, 1000));
+                tx.output(BalanceContract.ID, donor.withTotals(500, 500));
+                tx.command(bank.getPublicKey(), new BalanceContract.Commands.Consolidate());
+                return tx.verifies();
+            });
+            l.transaction(tx -> {
+                tx.input(BalanceContract.ID, receiver);
+                tx.input(BalanceContract.ID, donor);
+                tx.output(BalanceContract.ID, receiver.withTotals(9000, 1000));
+                tx.output(BalanceContract.ID, donor.withTotals(500, 500));
+                tx.command(bank.getPublicKey(), new BalanceContract.Commands.Consolidate());
+                return tx.failsWith("Consolidation must conserve each account's totals");
+            });
+            l.transaction(tx -> {
+                tx.input(BalanceContract.ID, receiver);
+                tx.input(BalanceContract.ID, donor);
+                tx.output(BalanceContract.ID, receiver.withTotals(8500, 1000));
+                tx.output(BalanceContract.ID, donor.withTotals(-500, 500));
+                tx.command(bank.getPublicKey(), new BalanceContract.Commands.Consolidate());
+                return tx.failsWith("A stripe cannot go negative when consolidating");
+            });
+            l.transaction(tx -> {
+                tx.input(BalanceContract.ID, receiver);
+                tx.input(BalanceContract.ID, donor);
+                tx.output(BalanceContract.ID, receiver.withTotals(7500, 1000));
+                tx.output(BalanceContract.ID, donor.withTotals(500, 0));
+                tx.command(bank.getPublicKey(), new BalanceContract.Commands.Consolidate());
+                return tx.failsWith("moneyOut cannot change when consolidating");
+            });
+            Balance single = plain(5000, 0);
+            l.transaction(tx -> {
+                tx.input(BalanceContract.ID, single);
+                tx.output(BalanceContract.ID, single.withTotals(5000, 0));
+                tx.command(bank.getPublicKey(), new BalanceContract.Commands.Consolidate());
+                return tx.failsWith("Only stripes of a striped account can be consolidated");
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void transferMovesOneAmountBetweenTwoAccounts() {
+        Balance source = plain(10000, 0);
+        Balance destination = plain(0, 0);
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(BalanceContract.ID, source);
+                tx.input(BalanceContract.ID, destination);
+                tx.output(BalanceContract.ID, source.withTotals(10000, 2500));
+                tx.output(BalanceContract.ID, destination.withTotals(2500, 0));
+                tx.command(bank.getPublicKey(), new BalanceContract.Commands.Transfer());
+                return tx.verifies();
+            });
+            l.transaction(tx -> {
+                tx.input(BalanceContract.ID, source);
+                tx.input(BalanceContract.ID, destination);
+                tx.output(BalanceContract.ID, source.withTotals(10000, 2500));
+                tx.output(BalanceContract.ID, destination.withTotals(3000, 0));
+                tx.command(bank.getPublicKey(), new BalanceContract.Commands.Transfer());
+                return tx.failsWith("A transfer must conserve value");
+            });
+            l.transaction(tx -> {
+                tx.input(BalanceContract.ID, source);
+                tx.input(BalanceContract.ID, destination);
+                tx.output(BalanceContract.ID, source.withTotals(10000, 2500));
+                tx.output(BalanceContract.ID, destination.withTotals(2500, 100));
+                tx.command(bank.getPublicKey(), new BalanceContract.Commands.Transfer());
+                return tx.failsWith("Each balance is either the source or the destination");
+            });
+            Balance euros = new Balance(0, 0, "EUR", bank.getParty(), new UniqueIdentifier());
+            l.transaction(tx -> {
+                tx.input(BalanceContract.ID, source);
+                tx.input(BalanceContract.ID, euros);
+                tx.output(BalanceContract.ID, source.withTotals(10000, 2500));
+                tx.output(BalanceContract.ID, euros.withTotals(2500, 0));
+                tx.command(bank.getPublicKey(), new BalanceContract.Commands.Transfer());
+                return tx.failsWith("Both balances must be in the same currency");
+            });
+            UUID accountId = UUID.randomUUID();
+            Balance first = stripe(accountId, 0, 2, 10000, 0);
+            Balance second = stripe(accountId, 1, 2, 0, 0);
+            l.transaction(tx -> {
+                tx.input(BalanceContract.ID, first);
+                tx.input(BalanceContract.ID, second);
+                tx.output(BalanceContract.ID, first.withTotals(10000, 2500));
+                tx.output(BalanceContract.ID, second.withTotals(2500, 0));
+                tx.command(bank.getPublicKey(), new BalanceContract.Commands.Transfer());
+                return tx.failsWith("A transfer must be between two different accounts");
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void withdrawalsAndTransfersCannotOverdraw() {
+        Balance balance = plain(10000, 2500);
+        Balance destination = plain(0, 0);
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(BalanceContract.ID, balance);
+                tx.output(BalanceContract.ID, balance.withTotals(10000, 10000));
+                tx.command(bank.getPublicKey(), new BalanceContract.Commands.Withdraw());
+                return tx.verifies();
+            });
+            l.transaction(tx -> {
+                tx.input(BalanceContract.ID, balance);
+                tx.output(BalanceContract.ID, balance.withTotals(10000, 10001));
+                tx.command(bank.getPublicKey(), new BalanceContract.Commands.Withdraw());
+                return tx.failsWith("A withdrawal cannot overdraw balance");
+            });
+            l.transaction(tx -> {
+                tx.input(BalanceContract.ID, balance);
+                tx.input(BalanceContract.ID, destination);
+                tx.output(BalanceContract.ID, balance.withTotals(10000, 10001));
+                tx.output(BalanceContract.ID, destination.withTotals(7501, 0));
+                tx.command(bank.getPublicKey(), new BalanceContract.Commands.Transfer());
+                return tx.failsWith("A transfer cannot overdraw its source");
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void totalsCannotWrapRound() {
+        Balance nearlyFull = plain(Long.MAX_VALUE - 5, 0);
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(BalanceContract.ID, nearlyFull);
+                // Long.MAX_VALUE - 5 + 16, wrapped round; the difference of the two totals is +16
+                tx.output(BalanceContract.ID, nearlyFull.withTotals(Long.MIN_VALUE + 10, 0));
+                tx.command(bank.getPublicKey(), new BalanceContract.Commands.Deposit());
+                return tx.failsWith("moneyIn and moneyOut cannot decrease");
+            });
+            Balance source = plain(Long.MAX_VALUE, Long.MAX_VALUE - 5);
+            Balance destination = plain(Long.MAX_VALUE - 5, 0);
+            l.transaction(tx -> {
+                tx.input(BalanceContract.ID, source);
+                tx.input(BalanceContract.ID, destination);
+                tx.output(BalanceContract.ID, source.withTotals(Long.MAX_VALUE, Long.MIN_VALUE + 10));
+                tx.output(BalanceContract.ID, destination.withTotals(Long.MIN_VALUE + 10, 0));
+                tx.command(bank.getPublicKey(), new BalanceContract.Commands.Transfer());
+                return tx.failsWith("Each balance is either the source or the destination");
+            });
+            return null;
+        });
+    }
+}
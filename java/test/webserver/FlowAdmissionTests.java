@@ -0,0 +1,77 @@
+package com.template.webserver;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * FlowAdmission's per-balance limit, as the Controller applies it: once per stripe of a striped account,
+ * and not at all to combined postings, which the node's combiner serialises per balance.
+ */
+public class FlowAdmissionTests {
+    private static final String ACCOUNT = "5f0c1a52-6a3e-4c1e-9d1a-8f6f0b7f2c11";
+
+    private FlowAdmission admission;
+    private final AtomicInteger started = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        admission = new FlowAdmission(new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(admission, "minLimit", 4);
+        ReflectionTestUtils.setField(admission, "maxLimit", 512);
+        ReflectionTestUtils.setField(admission, "initialLimit", 64);
+        ReflectionTestUtils.setField(admission, "perBalance", 4);
+        ReflectionTestUtils.setField(admission, "maxQueue", 1000);
+        ReflectionTestUtils.setField(admission, "maxWaitMillis", 60_000L);
+        ReflectionTestUtils.setField(admission, "targetLatencyMillis", 2000L);
+        ReflectionTestUtils.setField(admission, "backoff", 0.9);
+        admission.start();
+    }
+
+    @After
+    public void tearDown() {
+        admission.close();
+    }
+
+    // a flow that stays in flight for the rest of the test
+    private CompletableFuture<Object> pending() {
+        started.incrementAndGet();
+        return new CompletableFuture<>();
+    }
+
+    @Test
+    public void plainPostingsToOneAccountWaitForThePerBalanceLimit() {
+        for (int i = 0; i < 10; i++) {
+            admission.submit(Collections.singletonList(ACCOUNT), this::pending);
+        }
+        assertEquals(4, started.get());
+        assertEquals(6, admission.getQueueDepth());
+    }
+
+    @Test
+    public void concurrentCombinedPostingsToOneAccountGetPastThePerBalanceLimit() {
+        // the Controller admits combined_posting without its balance
+        for (int i = 0; i < 10; i++) {
+            admission.submit(Collections.emptyList(), this::pending);
+        }
+        assertEquals(10, started.get());
+        assertEquals(0, admission.getQueueDepth());
+    }
+
+    @Test
+    public void stripedAccountsGetThePerBalanceLimitPerStripe() {
+        for (int i = 0; i < 20; i++) {
+            admission.submit(Collections.singletonMap(ACCOUNT, 3), this::pending);
+        }
+        assertEquals(12, started.get());
+        assertEquals(8, admission.getQueueDepth());
+    }
+}